@@ -4,10 +4,16 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.net.InetSocketAddress;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -42,6 +48,8 @@ import net.instant.plugins.PluginException;
 import net.instant.plugins.PluginManager;
 import net.instant.proto.APIHook;
 import net.instant.proto.MessageDistributor;
+import net.instant.proto.RoomLogStore;
+import net.instant.util.AccessLog;
 import net.instant.util.Formats;
 import net.instant.util.RecordDigester;
 import net.instant.util.UniqueCounter;
@@ -50,12 +58,17 @@ import net.instant.util.config.Configuration;
 import net.instant.util.config.DynamicConfiguration;
 import net.instant.util.config.PropertiesConfiguration;
 import net.instant.util.fileprod.FSResourceProducer;
+import net.instant.util.fileprod.FileCache;
 import net.instant.util.fileprod.FileCell;
 import net.instant.util.fileprod.FileProducer;
+import net.instant.util.fileprod.FileWatcher;
+import net.instant.util.fileprod.Fingerprinter;
 import net.instant.util.fileprod.ListProducer;
+import net.instant.util.fileprod.NegativeCache;
 import net.instant.util.fileprod.Producer;
 import net.instant.util.fileprod.ProducerJob;
 import net.instant.util.fileprod.QueryStrippingProducer;
+import net.instant.util.fileprod.ResourceIndex;
 import net.instant.util.fileprod.StringProducer;
 import net.instant.util.parser.ParserFactoryImpl;
 import net.instant.util.stringmatch.DefaultStringMatcher;
@@ -68,6 +81,9 @@ public class InstantRunner implements API1 {
     private static final String K_CONSOLE_ENABLED = "instant.console.enabled";
     private static final String K_CONSOLE_ADDR = "instant.console.addr";
     private static final String K_CONSOLE_PWFILE = "instant.console.pwfile";
+    private static final String K_WATCH_FILES = "instant.http.cache.watch";
+    private static final String K_WARM_UP = "instant.http.cache.warmUp";
+    private static final String K_FINGERPRINT = "instant.http.fingerprint";
 
     public static final int SHUTDOWN_TIME = 1000;
 
@@ -149,8 +165,10 @@ public class InstantRunner implements API1 {
     private File webroot;
     private Map<String, String> sslConfig;
     private PrintStream httpLog;
+    private File httpLogFile;
 
     private DynamicConfiguration config;
+    private AccessLog accessLog;
     private InstantWebSocketServer server;
     private RedirectHook redirects;
     private StaticFileHook files;
@@ -159,6 +177,9 @@ public class InstantRunner implements API1 {
     private ListProducer pluginFiles;
     private StringProducer stringFiles;
     private FSResourceProducer sourceFiles;
+    private FileWatcher fileWatcher;
+    private ResourceIndex resourceIndex;
+    private Fingerprinter fingerprinter;
     private MessageDistributor distributor;
     private ScheduledExecutorService jobScheduler;
     private ExecutorService taskRunner;
@@ -173,6 +194,7 @@ public class InstantRunner implements API1 {
         port = 8080;
         webroot = null;
         httpLog = null;
+        httpLogFile = null;
     }
 
     public String getHost() {
@@ -210,6 +232,18 @@ public class InstantRunner implements API1 {
         httpLog = s;
     }
 
+    /**
+     * A file to write the HTTP log to.
+     * If set, this takes precedence over getHTTPLog(), and the file may be
+     * rotated as configured.
+     */
+    public File getHTTPLogFile() {
+        return httpLogFile;
+    }
+    public void setHTTPLogFile(File f) {
+        httpLogFile = f;
+    }
+
     public DynamicConfiguration getConfig() {
         return config;
     }
@@ -223,6 +257,25 @@ public class InstantRunner implements API1 {
         return config;
     }
 
+    public AccessLog getAccessLog() {
+        return accessLog;
+    }
+    public void setAccessLog(AccessLog log) {
+        accessLog = log;
+    }
+    public AccessLog makeAccessLog() {
+        if (accessLog == null) {
+            PrintStream out = (httpLog == null) ? System.err : httpLog;
+            try {
+                accessLog = AccessLog.fromConfig(makeConfig(), out,
+                                                 httpLogFile);
+            } catch (IOException exc) {
+                throw new RuntimeException("Could not open HTTP log", exc);
+            }
+        }
+        return accessLog;
+    }
+
     public InstantWebSocketServer getServer() {
         return server;
     }
@@ -238,7 +291,7 @@ public class InstantRunner implements API1 {
                 addr = new InetSocketAddress(host, port);
             }
             server = new InstantWebSocketServer(this, addr, getSSLConfig());
-            server.setHTTPLog(httpLog);
+            server.setHTTPLog(makeAccessLog());
             server.addInternalHook(makeRedirectHook());
             server.addInternalHook(makeFileHook());
             server.addInternalHook(makeAPIHook());
@@ -270,15 +323,38 @@ public class InstantRunner implements API1 {
     }
     public StaticFileHook makeFileHook() {
         if (files == null) {
-            files = new StaticFileHook(makeConfig(), new FileProducer());
+            files = new StaticFileHook(makeConfig(), FileProducer.fromConfig(
+                makeConfig(), new ListProducer(),
+                FileCache.fromConfig(makeConfig()),
+                NegativeCache.fromConfig(makeConfig())));
+            files.getProducer().setFingerprinter(makeFingerprinter());
             ListProducer l = files.getProducer().getProducer();
             l.add(makePluginFiles());
             l.add(new QueryStrippingProducer(makeStringFiles()));
             l.add(new QueryStrippingProducer(makeSourceFiles()));
+            FileWatcher w = makeFileWatcher();
+            if (w != null)
+                w.addListener(files.getProducer().getNegativeCache()
+                              .getClearTask());
         }
         return files;
     }
 
+    public Fingerprinter getFingerprinter() {
+        return fingerprinter;
+    }
+    public void setFingerprinter(Fingerprinter f) {
+        fingerprinter = f;
+    }
+    public Fingerprinter makeFingerprinter() {
+        if (fingerprinter == null) {
+            String enabled = makeConfig().get(K_FINGERPRINT);
+            if (! Util.nonempty(enabled) || Util.isTrue(enabled))
+                fingerprinter = new Fingerprinter();
+        }
+        return fingerprinter;
+    }
+
     public AuthHook getAuthHook() {
         return authHook;
     }
@@ -355,10 +431,71 @@ public class InstantRunner implements API1 {
         if (sourceFiles == null) {
             sourceFiles = new FSResourceProducer(webroot,
                 makePlugins().getClassLoader());
+            sourceFiles.getFSProducer().setWatcher(makeFileWatcher());
         }
         return sourceFiles;
     }
 
+    public FileWatcher getFileWatcher() {
+        return fileWatcher;
+    }
+    public void setFileWatcher(FileWatcher w) {
+        fileWatcher = w;
+    }
+    public FileWatcher makeFileWatcher() {
+        if (fileWatcher == null) {
+            String enabled = makeConfig().get(K_WATCH_FILES);
+            if (! Util.nonempty(enabled) || Util.isTrue(enabled))
+                fileWatcher = new FileWatcher();
+        }
+        return fileWatcher;
+    }
+
+    public ResourceIndex getResourceIndex() {
+        return resourceIndex;
+    }
+    public void setResourceIndex(ResourceIndex idx) {
+        resourceIndex = idx;
+    }
+    public ResourceIndex makeResourceIndex() {
+        if (resourceIndex == null) {
+            // Only the resources the source files may be produced from are
+            // indexed; whitelist entries without a literal prefix are left
+            // to the class loader.
+            List<String> prefixes = new ArrayList<String>();
+            for (String p : getSourcePrefixes())
+                prefixes.add(p.replaceFirst("^/+", ""));
+            resourceIndex = new ResourceIndex(prefixes);
+            if (prefixes.isEmpty()) return resourceIndex;
+            // The class path is searched before the plugins, just like the
+            // plugin class loader does.
+            for (String item : System.getProperty("java.class.path", "")
+                     .split(Pattern.quote(File.pathSeparator))) {
+                if (! item.isEmpty()) resourceIndex.addSource(new File(item));
+            }
+            for (URL url : makePlugins().getClassLoader().getURLs()) {
+                if (! url.getProtocol().equals("file")) continue;
+                try {
+                    resourceIndex.addSource(new File(url.toURI()));
+                } catch (URISyntaxException exc) {
+                    LOGGER.log(Level.WARNING, "Could not index resources " +
+                        "in " + url, exc);
+                }
+            }
+        }
+        return resourceIndex;
+    }
+
+    /* The (non-empty) literal prefixes of the source file whitelist. */
+    private List<String> getSourcePrefixes() {
+        List<String> ret = new ArrayList<String>();
+        for (Pattern p : makeSourceFiles().getWhitelist()) {
+            String prefix = DefaultStringMatcher.getLiteralPrefix(p);
+            if (! prefix.isEmpty()) ret.add(prefix);
+        }
+        return ret;
+    }
+
     public MessageDistributor getDistributor() {
         return distributor;
     }
@@ -367,7 +504,7 @@ public class InstantRunner implements API1 {
     }
     public MessageDistributor makeDistributor() {
         if (distributor == null) {
-            distributor = new MessageDistributor();
+            distributor = new MessageDistributor(makeConfig());
         }
         return distributor;
     }
@@ -575,6 +712,23 @@ public class InstantRunner implements API1 {
                     // It's OK, the important part (freeing the port) should
                     // already have happened.
                 }
+                AccessLog log = getAccessLog();
+                if (log != null) {
+                    try {
+                        log.close();
+                    } catch (IOException exc) {
+                        LOGGER.log(Level.SEVERE, "Could not close HTTP log",
+                                   exc);
+                    }
+                }
+                MessageDistributor distr = getDistributor();
+                if (distr == null || distr.getLogStore() == null) return;
+                try {
+                    distr.getLogStore().close();
+                } catch (IOException exc) {
+                    LOGGER.log(Level.SEVERE, "Could not close room logs",
+                               exc);
+                }
             }
 
         });
@@ -583,6 +737,10 @@ public class InstantRunner implements API1 {
     protected void setupConsole() throws Exception {
         makeConfig();
         BackendConsoleManager console = makeConsole();
+        addConsoleObject("fileProducer", makeFileHook().getProducer());
+        addConsoleObject("fileCache", makeFileHook().getProducer().getCache());
+        addConsoleObject("negativeFileCache",
+                         makeFileHook().getProducer().getNegativeCache());
         String enabledStr = config.get(K_CONSOLE_ENABLED);
         String addrStr = config.get(K_CONSOLE_ADDR);
         final boolean enabled;
@@ -623,8 +781,41 @@ public class InstantRunner implements API1 {
             };
         }
     }
+    /**
+     * Load all known static files into the file cache.
+     * These are the source files found in the webroot or the resource
+     * index (as far as they are whitelisted) and the files plugins have
+     * registered as strings. Files produced by plugins' FileGenerator-s
+     * cannot be enumerated and are not included.
+     */
+    public void warmUpFiles() throws InterruptedException {
+        FSResourceProducer src = makeSourceFiles();
+        Set<String> names = new LinkedHashSet<String>();
+        if (webroot != null) {
+            for (String p : getSourcePrefixes())
+                names.addAll(src.getFSProducer().listFiles(p));
+        }
+        ResourceIndex idx = src.getResourceProducer().getIndex();
+        if (idx != null) {
+            for (String n : idx.getNames()) names.add("/" + n);
+        }
+        Iterator<String> it = names.iterator();
+        while (it.hasNext()) {
+            String n = it.next();
+            // Pre-compressed siblings are loaded along with their originals.
+            if (! src.checkWhitelist(n) || n.endsWith(".gz") &&
+                    names.contains(n.substring(0, n.length() - 3)))
+                it.remove();
+        }
+        names.addAll(Arrays.asList(makeStringFiles().listFiles()));
+        makeFileHook().getProducer().preload(names);
+    }
+
     public void setup() throws Exception {
         makePlugins().setup();
+        makeSourceFiles().getResourceProducer().setIndex(
+            makeResourceIndex());
+        LOGGER.info("Indexed " + getResourceIndex().size() + " resources");
         clearConfigurationHash();
         makeVersionFile();
         makeConfig().addSource(new PluginConfigSource(getPlugins()));
@@ -632,8 +823,22 @@ public class InstantRunner implements API1 {
         makeTaskRunner();
         makeServer();
         setupConsole();
+        if (Util.isTrue(makeConfig().get(K_WARM_UP))) {
+            LOGGER.info("Warming up static file cache...");
+            warmUpFiles();
+        }
         scheduleJob(makeFileHook().getProducer().getGCTask(),
                     FileProducer.GC_INTERVAL, FileProducer.GC_INTERVAL);
+        scheduleJob(makeDistributor().getGCTask(),
+                    MessageDistributor.GC_INTERVAL,
+                    MessageDistributor.GC_INTERVAL);
+        RoomLogStore logStore = makeDistributor().getLogStore();
+        if (logStore != null) {
+            scheduleJob(logStore.getFlushTask(), RoomLogStore.FLUSH_INTERVAL,
+                        RoomLogStore.FLUSH_INTERVAL);
+            scheduleJob(logStore.getRetentionTask(), 0,
+                        RoomLogStore.RETENTION_INTERVAL);
+        }
     }
     public void launch() {
         InstantWebSocketServer srv = getServer();
@@ -25,6 +25,7 @@ import net.instant.util.argparse.KeyValue;
 import net.instant.util.argparse.Option;
 import net.instant.util.argparse.ParseResult;
 import net.instant.util.fileprod.FSResourceProducer;
+import net.instant.util.fileprod.Fingerprinter;
 
 public class Main implements Runnable {
 
@@ -124,7 +125,12 @@ public class Main implements Runnable {
         runner.setPort(r.get(port));
         runner.setWebroot(r.get(webroot));
         runner.setSSLConfig(pairsToMap(r.get(tlsFlags)));
-        runner.setHTTPLog(resolveLogFile(r.get(httpLog)));
+        File httpLogPath = r.get(httpLog);
+        if (httpLogPath == null || httpLogPath.getPath().equals("-")) {
+            runner.setHTTPLog(System.err);
+        } else {
+            runner.setHTTPLogFile(httpLogPath);
+        }
         runner.makeConfig().putAll(r.get(options));
         File configPath = r.get(config);
         if (configPath != null) runner.addConfigFile(configPath);
@@ -177,6 +183,16 @@ public class Main implements Runnable {
         FSResourceProducer prod = runner.makeSourceFiles();
         prod.whitelist("/pages/.*");
         prod.whitelist("/static/.*");
+        Fingerprinter fp = runner.makeFingerprinter();
+        if (fp != null) {
+            fp.fingerprint("/static/.*");
+            fp.rewrite("/pages/.*\\.html");
+            fp.rewrite("/static/.*\\.html");
+            fp.rewrite(Pattern.compile(Pattern.quote(
+                InstantRunner.SITE_FILE)));
+            runner.addFileAlias(Pattern.compile("(/static/.+)\\." +
+                Fingerprinter.FINGERPRINT_RE + "(\\.[^./]+)"), "\\1\\2");
+        }
         runner.makeAuthHook().setPath("/api/auth");
         APIWebSocketHook ws = runner.makeAPIHook();
         ws.getWhitelist().add(Pattern.compile("/room/(" + ROOM_RE + ")/ws"),
@@ -0,0 +1,20 @@
+package net.instant.api;
+
+/**
+ * A RequestHook that can tell in advance which requests it might accept.
+ * The core uses the claims to avoid consulting hooks for requests they
+ * would reject anyway; hooks not implementing this interface are consulted
+ * for every request. The order in which hooks are consulted is not affected.
+ */
+public interface ClaimingRequestHook extends RequestHook {
+
+    /**
+     * A description of the requests this hook might accept.
+     * evaluateRequest() must reject every request not covered by the return
+     * value. The same object should be returned for as long as the claims
+     * stay the same, as the core re-indexes its hooks whenever a different
+     * one is returned.
+     */
+    RequestClaims getClaims();
+
+}
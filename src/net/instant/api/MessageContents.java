@@ -1,5 +1,10 @@
 package net.instant.api;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONString;
 
@@ -8,6 +13,16 @@ import org.json.JSONString;
  */
 public class MessageContents implements JSONString {
 
+    /* Buffers larger than this are not retained between serializations. */
+    private static final int MAX_RETAINED_BUFFER = 65536;
+
+    private static final ThreadLocal<StringWriter> BUFFER =
+        new ThreadLocal<StringWriter>() {
+            protected StringWriter initialValue() {
+                return new StringWriter();
+            }
+        };
+
     private String id;
     private Object sequence;
     private String type;
@@ -71,14 +86,77 @@ public class MessageContents implements JSONString {
         return toJSONString();
     }
     public String toJSONString() {
-        return toJSONObject().toString();
+        StringWriter w = BUFFER.get();
+        // A nonempty buffer is being used by an enclosing invocation (e.g.
+        // if the payload is itself a MessageContents).
+        if (w.getBuffer().length() != 0) w = new StringWriter();
+        try {
+            writeJSON(w);
+            return w.toString();
+        } catch (IOException exc) {
+            // Should not happen with a StringWriter.
+            throw new JSONException(exc);
+        } finally {
+            StringBuffer buf = w.getBuffer();
+            buf.setLength(0);
+            if (buf.capacity() > MAX_RETAINED_BUFFER) buf.trimToSize();
+        }
+    }
+    /**
+     * Write the JSON representation of this instance into w.
+     * The output is the same as that of toJSONObject().toString(), but is
+     * generated without constructing an intermediate JSONObject. Payloads
+     * implementing JSONString (such as pre-serialized fragments) are
+     * written out verbatim.
+     * Both this and toJSONObject() take the payload from getRawData(), so
+     * that subclasses deferring the parsing of it serialize consistently.
+     */
+    public void writeJSON(Writer w) throws IOException {
+        // The member order matches that produced by JSONObject (as of the
+        // org.json version bundled) so that the output stays the same.
+        boolean first = true;
+        first = writeMember(w, first, "data", getRawData());
+        first = writeMember(w, first, "from", from);
+        first = writeMember(w, first, "id", id);
+        first = writeMember(w, first, "to", to);
+        first = writeMember(w, first, "type", type);
+        first = writeMember(w, first, "seq", sequence);
+        w.write((first) ? "{\"timestamp\":" : ",\"timestamp\":");
+        w.write(Long.toString(timestamp));
+        w.write('}');
     }
     public JSONObject toJSONObject() {
         return Utilities.createJSONObject("id", id, "seq", sequence,
-            "type", type, "from", from, "to", to, "data", data,
+            "type", type, "from", from, "to", to, "data", getRawData(),
             "timestamp", timestamp);
     }
 
+    private static boolean writeMember(Writer w, boolean first, String key,
+                                       Object value) throws IOException {
+        if (value == null) return first;
+        w.write((first) ? '{' : ',');
+        w.write('"');
+        w.write(key);
+        w.write("\":");
+        if (value instanceof String) {
+            JSONObject.quote((String) value, w);
+        } else if (value instanceof JSONString) {
+            String text = ((JSONString) value).toJSONString();
+            if (text == null) {
+                JSONObject.quote(value.toString(), w);
+            } else {
+                w.write(text);
+            }
+        } else if (value instanceof JSONObject) {
+            ((JSONObject) value).write(w);
+        } else if (value instanceof JSONArray) {
+            ((JSONArray) value).write(w);
+        } else {
+            w.write(JSONObject.valueToString(value));
+        }
+        return false;
+    }
+
     /**
      * The message ID.
      * Filled in by the core; should normally not be changed.
@@ -181,6 +259,17 @@ public class MessageContents implements JSONString {
         return this;
     }
 
+    /**
+     * The message's payload, in a form suitable for passing it on.
+     * This is the same as getData(), except that subclasses which defer
+     * parsing the payload may return an opaque JSONString containing the
+     * payload's original text instead. The return value should only be
+     * used as the payload of another message.
+     */
+    public Object getRawData() {
+        return getData();
+    }
+
     /**
      * Populate the payload with the given key/value pairs.
      * pairs must have an even number of entries, with the first entry of
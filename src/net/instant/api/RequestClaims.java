@@ -0,0 +1,89 @@
+package net.instant.api;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * A description of the requests a ClaimingRequestHook might accept.
+ * A request is covered if its type is among getTypes(), its method among
+ * getMethods(), and its path starts with one of getPathPrefixes(); each of
+ * those may be null to indicate that the corresponding property is not
+ * restricted.
+ * Instances are immutable.
+ */
+public class RequestClaims {
+
+    /**
+     * An instance covering all requests.
+     */
+    public static final RequestClaims ANY =
+        new RequestClaims(null, null, null);
+
+    private final Set<RequestType> types;
+    private final Set<String> methods;
+    private final Set<String> pathPrefixes;
+
+    public RequestClaims(Collection<RequestType> types,
+                         Collection<String> methods,
+                         Collection<String> pathPrefixes) {
+        this.types = (types == null) ? null :
+            Collections.unmodifiableSet(copyTypes(types));
+        this.methods = (methods == null) ? null :
+            Collections.unmodifiableSet(new LinkedHashSet<String>(methods));
+        this.pathPrefixes = (pathPrefixes == null) ? null :
+            Collections.unmodifiableSet(
+                new LinkedHashSet<String>(pathPrefixes));
+    }
+
+    /**
+     * The request types covered, or null for all.
+     */
+    public Set<RequestType> getTypes() {
+        return types;
+    }
+
+    /**
+     * The HTTP methods covered, or null for all.
+     */
+    public Set<String> getMethods() {
+        return methods;
+    }
+
+    /**
+     * Prefixes of the paths (including query strings) covered, or null for
+     * all.
+     */
+    public Set<String> getPathPrefixes() {
+        return pathPrefixes;
+    }
+
+    /**
+     * Test whether the given request type and method are covered.
+     * The path is not considered.
+     */
+    public boolean coversKind(RequestType type, String method) {
+        return ((types == null || types.contains(type)) &&
+                (methods == null || methods.contains(method)));
+    }
+
+    /**
+     * Test whether the given request is covered.
+     */
+    public boolean covers(RequestType type, String method, String path) {
+        if (! coversKind(type, method)) return false;
+        if (pathPrefixes == null) return true;
+        for (String p : pathPrefixes) {
+            if (path.startsWith(p)) return true;
+        }
+        return false;
+    }
+
+    private static Set<RequestType> copyTypes(Collection<RequestType> in) {
+        if (in.isEmpty()) return EnumSet.noneOf(RequestType.class);
+        return EnumSet.copyOf(in);
+    }
+
+}
@@ -20,6 +20,9 @@ public interface Room {
 
     /**
      * All clients currently connected to the room.
+     * The set returned is an unmodifiable snapshot that does not reflect
+     * subsequent membership changes; it can be iterated over without
+     * further synchronization.
      */
     Set<ClientConnection> getClients();
 
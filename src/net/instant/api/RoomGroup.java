@@ -16,6 +16,8 @@ public interface RoomGroup {
     /**
      * Get (and possibly create) a room for the given name.
      * If null is given, the special no-rooms instance is returned.
+     * As long as a Room instance is referenced, this returns the same
+     * instance for its name.
      */
     Room getRoom(String name);
 
@@ -3,6 +3,7 @@ package net.instant.hooks;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.logging.Logger;
 import net.instant.api.API1;
@@ -17,9 +18,9 @@ import net.instant.api.Room;
 import net.instant.proto.MessageDistributor;
 import net.instant.proto.ProtocolError;
 import net.instant.proto.RoomDistributor;
+import net.instant.util.JSONEnvelope;
 import net.instant.util.Util;
 import net.instant.ws.IdentityCookieManager;
-import org.java_websocket.exceptions.WebsocketNotConnectedException;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -62,10 +63,50 @@ public class APIWebSocketHook extends WebSocketHook {
 
     }
 
+    /* Message contents whose payload is only parsed when it is asked for;
+     * until then, it is relayed verbatim. */
+    protected static class LazyMessageContents extends MessageContents {
+
+        private JSONEnvelope.Value rawData;
+
+        public LazyMessageContents(JSONObject header,
+                                   JSONEnvelope.Value rawData) {
+            super(header);
+            this.rawData = rawData;
+        }
+
+        public Object getData() {
+            if (rawData != null) {
+                try {
+                    super.setData(rawData.getValue());
+                } catch (JSONException exc) {
+                    // Should not happen, as the envelope has been validated.
+                    throw new RuntimeException(exc);
+                }
+                rawData = null;
+            }
+            return super.getData();
+        }
+        public void setData(Object data) {
+            rawData = null;
+            super.setData(data);
+        }
+
+        public Object getRawData() {
+            return (rawData != null) ? rawData : super.getData();
+        }
+
+        public void updateData(Object... params) {
+            getData();
+            super.updateData(params);
+        }
+
+    }
+
     public static class MessageImpl implements Message {
 
         private final String rawData;
-        private final JSONObject parsedData;
+        private JSONObject parsedData;
         private final MessageContents data;
         private final ClientConnection source;
         private final Room room;
@@ -73,12 +114,7 @@ public class APIWebSocketHook extends WebSocketHook {
         public MessageImpl(String rawData, ClientConnection source,
                            Room room) throws JSONException {
             this.rawData = rawData;
-            Object parsedData = Util.parseOneJSONValue(rawData);
-            if (!(parsedData instanceof JSONObject))
-                throw new JSONException(
-                    "Top-level value must be a JSON object");
-            this.parsedData = (JSONObject) parsedData;
-            this.data = new MessageContents(this.parsedData);
+            this.data = parseContents(rawData);
             this.source = source;
             this.room = room;
        }
@@ -88,6 +124,14 @@ public class APIWebSocketHook extends WebSocketHook {
         }
 
         public JSONObject getParsedData() {
+            if (parsedData == null) {
+                try {
+                    parsedData = parseObject(rawData);
+                } catch (JSONException exc) {
+                    // Should not happen, as the message has been validated.
+                    throw new RuntimeException(exc);
+                }
+            }
             return parsedData;
         }
 
@@ -105,17 +149,44 @@ public class APIWebSocketHook extends WebSocketHook {
 
         public void sendResponse(MessageContents resp) {
             resp.setSequence(data.getSequence());
-            try {
-                source.getConnection().send(resp.toString());
-            } catch (WebsocketNotConnectedException exc) {
-                // This one would have been lost anyway.
-            }
+            room.sendUnicast(source, resp);
         }
 
         public MessageContents makeMessage(String type) {
             return new MessageContents(type);
         }
 
+        private MessageContents parseContents(String text)
+                throws JSONException {
+            JSONEnvelope env;
+            try {
+                env = JSONEnvelope.scan(text);
+            } catch (JSONException exc) {
+                // The scanner is stricter than org.json; let the latter have
+                // the final word on the message's validity.
+                parsedData = parseObject(text);
+                return new MessageContents(parsedData);
+            }
+            // Only the (small) header fields are parsed here; the payload
+            // is left to LazyMessageContents.
+            JSONObject header = new JSONObject();
+            for (Map.Entry<String, JSONEnvelope.Value> ent :
+                     env.getMembers().entrySet()) {
+                if (ent.getKey().equals("data")) continue;
+                header.put(ent.getKey(), ent.getValue().getValue());
+            }
+            return new LazyMessageContents(header, env.getRaw("data"));
+        }
+
+        private static JSONObject parseObject(String text)
+                throws JSONException {
+            Object ret = Util.parseOneJSONValue(text);
+            if (!(ret instanceof JSONObject))
+                throw new JSONException(
+                    "Top-level value must be a JSON object");
+            return (JSONObject) ret;
+        }
+
     }
 
     public static final String COOKIE_NAME = "uid";
@@ -202,7 +273,7 @@ public class APIWebSocketHook extends WebSocketHook {
         for (MessageHook h : getAllHooks())
             h.onConnect(event, identity);
         room.sendUnicast(conn, identity);
-        distr.add(conn, room);
+        room = distr.add(conn, room);
         if (roomName != null)
             room.sendBroadcast(event.getMessage());
     }
@@ -1,15 +1,23 @@
 package net.instant.hooks;
 
+import java.util.Collections;
+import net.instant.api.ClaimingRequestHook;
 import net.instant.api.ClientConnection;
+import net.instant.api.RequestClaims;
 import net.instant.api.RequestData;
 import net.instant.api.RequestType;
 import net.instant.api.ResponseBuilder;
 import net.instant.util.Encodings;
 import net.instant.util.Util;
 
-public class AuthHook extends HookAdapter {
+public class AuthHook extends HookAdapter implements ClaimingRequestHook {
 
     private String path;
+    private RequestClaims claims;
+
+    public AuthHook() {
+        setPath(null);
+    }
 
     public String getPath() {
         return path;
@@ -17,6 +25,13 @@ public class AuthHook extends HookAdapter {
 
     public void setPath(String p) {
         path = p;
+        claims = new RequestClaims(Collections.singleton(RequestType.HTTP),
+            null, (p == null) ? Collections.<String>emptySet() :
+                                Collections.singleton(p));
+    }
+
+    public RequestClaims getClaims() {
+        return claims;
     }
 
     public boolean evaluateRequest(RequestData req, ResponseBuilder resp) {
@@ -1,13 +1,16 @@
 package net.instant.hooks;
 
 import java.nio.ByteBuffer;
+import java.util.Collections;
+import net.instant.api.ClaimingRequestHook;
 import net.instant.api.ClientConnection;
+import net.instant.api.RequestClaims;
 import net.instant.api.RequestData;
 import net.instant.api.RequestType;
 import net.instant.api.ResponseBuilder;
 import net.instant.util.Encodings;
 
-public class CodeHook extends HookAdapter {
+public class CodeHook extends HookAdapter implements ClaimingRequestHook {
 
     public interface Filter {
 
@@ -21,7 +24,8 @@ public class CodeHook extends HookAdapter {
                 return (req.getRequestType() == RequestType.ERROR &&
                     req.getMethod().equals("GET"));
             }
-        });
+        }, new RequestClaims(Collections.singleton(RequestType.ERROR),
+                             Collections.singleton("GET"), null));
 
     public static final CodeHook METHOD_NOT_ALLOWED = new CodeHook(
         405, "Method Not Allowed", new Filter() {
@@ -29,23 +33,38 @@ public class CodeHook extends HookAdapter {
                 return (req.getRequestType() == RequestType.ERROR &&
                     ! req.getMethod().equals("GET"));
             }
-        });
+        }, new RequestClaims(Collections.singleton(RequestType.ERROR),
+                             null, null));
 
     private final int code;
     private final String message;
     private final Filter filter;
+    private final RequestClaims claims;
     private final ByteBuffer response;
 
-    public CodeHook(int code, String message, Filter filter) {
+    /**
+     * Create a new instance.
+     * claims must cover every request admitted by filter.
+     */
+    public CodeHook(int code, String message, Filter filter,
+                    RequestClaims claims) {
         this.code = code;
         this.message = message;
         this.filter = filter;
+        this.claims = claims;
         this.response = Encodings.toBytes(code + " " + message);
     }
+    public CodeHook(int code, String message, Filter filter) {
+        this(code, message, filter, RequestClaims.ANY);
+    }
     public CodeHook(int code, String message) {
         this(code, message, null);
     }
 
+    public RequestClaims getClaims() {
+        return claims;
+    }
+
     public boolean evaluateRequest(RequestData req, ResponseBuilder resp) {
         if (filter != null && ! filter.admit(req)) return false;
         resp.respond(code, message, response.limit());
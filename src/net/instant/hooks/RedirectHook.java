@@ -2,17 +2,23 @@ package net.instant.hooks;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.regex.Pattern;
+import net.instant.api.ClaimingRequestHook;
 import net.instant.api.ClientConnection;
+import net.instant.api.RequestClaims;
 import net.instant.api.RequestData;
 import net.instant.api.ResponseBuilder;
 import net.instant.util.Util;
 import net.instant.util.stringmatch.DefaultStringMatcher;
+import net.instant.util.stringmatch.PrefixIndex;
 import net.instant.util.stringmatch.StringMatcher;
 
-public class RedirectHook extends HookAdapter {
+public class RedirectHook extends HookAdapter
+        implements ClaimingRequestHook {
 
     public enum RedirectType {
 
@@ -85,17 +91,22 @@ public class RedirectHook extends HookAdapter {
     }
 
     private final List<Redirect> redirects;
+    private volatile PrefixIndex<Redirect> index;
+    private volatile RequestClaims claims;
 
     public RedirectHook() {
         redirects = new ArrayList<Redirect>();
+        reindex();
     }
 
-    public Redirect add(Redirect r) {
+    public synchronized Redirect add(Redirect r) {
         redirects.add(r);
+        reindex();
         return r;
     }
-    public void remove(Redirect r) {
+    public synchronized void remove(Redirect r) {
         redirects.remove(r);
+        reindex();
     }
 
     public Redirect add(Pattern p, String r, int c) {
@@ -107,13 +118,17 @@ public class RedirectHook extends HookAdapter {
                                        r, false, RedirectType.forCode(c)));
     }
 
+    public RequestClaims getClaims() {
+        return claims;
+    }
+
     public boolean evaluateRequest(RequestData req, ResponseBuilder resp) {
         String[] parts = Util.splitQueryString(req.getPath());
-        for (Redirect r : redirects) {
+        for (Redirect r : index.lookup(parts[0])) {
             String l = r.match(parts[0]);
             if (l == null) continue;
             RedirectType t = r.getRedirectType();
-            resp.respond(t.getCode(), t.getMessage(), -1);
+            resp.respond(t.getCode(), t.getMessage(), 0);
             resp.addHeader("Location", Util.joinQueryString(l, parts[1]));
             return true;
         }
@@ -124,4 +139,19 @@ public class RedirectHook extends HookAdapter {
         conn.getConnection().close();
     }
 
+    /* Only the redirects whose literal prefixes match a path need to be
+     * tried on it. */
+    private void reindex() {
+        PrefixIndex<Redirect> idx = new PrefixIndex<Redirect>();
+        Set<String> prefixes = new LinkedHashSet<String>();
+        for (Redirect r : redirects) {
+            String p = (r instanceof DefaultStringMatcher) ?
+                ((DefaultStringMatcher) r).getLiteralPrefix() : "";
+            idx.add(p, r);
+            prefixes.add(p);
+        }
+        index = idx;
+        claims = new RequestClaims(null, null, prefixes);
+    }
+
 }
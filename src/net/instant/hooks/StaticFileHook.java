@@ -1,25 +1,41 @@
 package net.instant.hooks;
 
 import java.io.FileNotFoundException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import net.instant.api.ClaimingRequestHook;
 import net.instant.api.ClientConnection;
+import net.instant.api.RequestClaims;
 import net.instant.api.RequestData;
 import net.instant.api.RequestType;
 import net.instant.api.ResponseBuilder;
+import net.instant.util.Formats;
 import net.instant.util.Util;
 import net.instant.util.config.Configuration;
 import net.instant.util.fileprod.FileCell;
 import net.instant.util.fileprod.FileProducer;
+import net.instant.util.fileprod.Fingerprinter;
 import net.instant.util.fileprod.ProducerJob;
 import net.instant.util.stringmatch.ListStringMatcher;
+import net.instant.ws.InstantWebSocketImpl;
+import org.java_websocket.WebSocket;
 
-public class StaticFileHook extends HookAdapter {
+public class StaticFileHook extends HookAdapter
+        implements ClaimingRequestHook {
 
     private static final Logger LOGGER = Logger.getLogger("StaticFileHook");
 
     private static final String K_MAXAGE = "instant.http.maxCacheAge";
     public static final int DEFAULT_MAX_CACHE_AGE = 3600;
+    /* Used for fingerprinted names, whose content never changes. */
+    public static final int IMMUTABLE_MAX_CACHE_AGE = 31536000;
+
+    private static final RequestClaims CLAIMS = new RequestClaims(
+        Collections.singleton(RequestType.HTTP),
+        Collections.singleton("GET"), null);
 
     private final ListStringMatcher aliases;
     private final ListStringMatcher contentTypes;
@@ -54,6 +70,10 @@ public class StaticFileHook extends HookAdapter {
         producer = p;
     }
 
+    public RequestClaims getClaims() {
+        return CLAIMS;
+    }
+
     public boolean evaluateRequest(RequestData req, ResponseBuilder resp) {
         if (producer == null || req.getRequestType() != RequestType.HTTP ||
                 ! req.getMethod().equals("GET"))
@@ -67,17 +87,39 @@ public class StaticFileHook extends HookAdapter {
             ent = producer.get(fullPath);
         } catch (FileNotFoundException exc) {
             return false;
+        } catch (RejectedExecutionException exc) {
+            // Too many files are being produced; the client may retry.
+            resp.respond(503, "Service Unavailable", 0);
+            resp.addHeader("Retry-After", "1");
+            resp.addHeader("Cache-Control", "no-cache");
+            return true;
         }
         if (ent == null) {
             resp.respond(200, "OK", -1);
             req.getPrivateData().put("path", fullPath);
         } else {
+            boolean immutable = Fingerprinter.isFingerprint(rawParts[0],
+                                                            ent);
+            // The response depends on Accept-Encoding if there are (or
+            // might later be) variants.
+            resp.addHeader("Vary", "Accept-Encoding");
+            String encoding = chooseEncoding(ent,
+                                             req.getHeader("Accept-Encoding"));
+            if (encoding != null) {
+                ent = ent.getVariant(encoding);
+                resp.addHeader("Content-Encoding", encoding);
+            }
             boolean cached = false;
             if (ent.getETag() != null) {
                 String fullETag = "w/\"" + ent.getETag() + "\"";
                 cached = fullETag.equals(req.getHeader("If-None-Match"));
-                resp.addHeader("Cache-Control", "public, max-age=" +
-                    maxCacheAge);
+                if (immutable) {
+                    resp.addHeader("Cache-Control", "public, max-age=" +
+                        IMMUTABLE_MAX_CACHE_AGE + ", immutable");
+                } else {
+                    resp.addHeader("Cache-Control", "public, max-age=" +
+                        maxCacheAge);
+                }
                 resp.addHeader("ETag", fullETag);
             } else {
                 // Prevent proxies from caching the non-revalidatable version.
@@ -89,6 +131,9 @@ public class StaticFileHook extends HookAdapter {
             } else {
                 resp.respond(200, "OK", ent.getSize());
                 req.getPrivateData().put("path", fullPath);
+                // The variant might be gone by the time the body is sent.
+                if (encoding != null)
+                    req.getPrivateData().put("variant", ent);
             }
         }
         String contentType = contentTypes.match(basePath);
@@ -103,24 +148,73 @@ public class StaticFileHook extends HookAdapter {
             conn.getConnection().close();
             return;
         }
+        FileCell variant = (FileCell) conn.getPrivateData().get("variant");
+        if (variant != null) {
+            send(conn.getConnection(), variant);
+            conn.getConnection().close();
+            return;
+        }
         try {
             producer.get(path, new ProducerJob.Callback() {
                 public void fileProduced(String name, FileCell result) {
+                    WebSocket ws = conn.getConnection();
                     if (result != null) {
-                        conn.getConnection().send(result.getData());
+                        send(ws, result);
                     } else {
                         // Cannot do anything about failure now...
                         LOGGER.warning("Could not deliver static file " +
                             name + " although promised.");
                     }
-                    conn.getConnection().close();
+                    ws.close();
                 }
             });
         } catch (FileNotFoundException exc) {
             LOGGER.log(Level.WARNING, "Static file " + path +
                 " disappeared?!", exc);
             conn.getConnection().close();
+        } catch (RejectedExecutionException exc) {
+            LOGGER.warning("Could not deliver static file " + path +
+                ": Too many files being produced");
+            conn.getConnection().close();
+        }
+    }
+
+    private static void send(WebSocket ws, FileCell cell) {
+        if (ws instanceof InstantWebSocketImpl) {
+            ((InstantWebSocketImpl) ws).sendFile(cell);
+        } else {
+            ws.send(cell.getData());
+        }
+    }
+
+    /* Returns the content-coding of the variant of ent to send, or null
+     * for ent itself. */
+    private static String chooseEncoding(FileCell ent, String header) {
+        if (ent.getVariants().isEmpty()) return null;
+        List<Formats.HeaderEntry> accepted = Formats.parseHTTPHeader(header);
+        if (accepted == null) return null;
+        String ret = null;
+        double bestQuality = 0, identityQuality = 0;
+        for (Formats.HeaderEntry e : accepted) {
+            if (e == null) continue;
+            double q;
+            try {
+                q = (e.containsKey("q")) ? Double.parseDouble(e.get("q")) : 1;
+            } catch (NumberFormatException exc) {
+                continue;
+            }
+            String enc = e.getValue().trim().toLowerCase();
+            if (enc.equals("x-gzip")) enc = "gzip";
+            if (enc.equals("identity")) {
+                identityQuality = q;
+            } else if (ent.getVariant(enc) != null && q > bestQuality) {
+                ret = enc;
+                bestQuality = q;
+            }
         }
+        // Variants are preferred unless the identity is explicitly
+        // preferred over them.
+        return (bestQuality >= identityQuality) ? ret : null;
     }
 
 }
@@ -1,12 +1,17 @@
 package net.instant.hooks;
 
+import java.util.Collections;
+import net.instant.api.ClaimingRequestHook;
+import net.instant.api.RequestClaims;
 import net.instant.api.RequestData;
-import net.instant.api.RequestHook;
 import net.instant.api.RequestType;
 import net.instant.api.ResponseBuilder;
 import net.instant.util.stringmatch.ListStringMatcher;
 
-public abstract class WebSocketHook implements RequestHook {
+public abstract class WebSocketHook implements ClaimingRequestHook {
+
+    private static final RequestClaims CLAIMS = new RequestClaims(
+        Collections.singleton(RequestType.WS), null, null);
 
     private final ListStringMatcher whitelist;
 
@@ -18,6 +23,10 @@ public abstract class WebSocketHook implements RequestHook {
         return whitelist;
     }
 
+    public RequestClaims getClaims() {
+        return CLAIMS;
+    }
+
     public boolean evaluateRequest(RequestData req, ResponseBuilder resp) {
         // Let the WS library create request/response.
         if (req.getRequestType() != RequestType.WS) return false;
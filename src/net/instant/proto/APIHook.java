@@ -9,10 +9,14 @@ import net.instant.api.PresenceChange;
 import net.instant.api.Room;
 import net.instant.util.UniqueCounter;
 import net.instant.util.Util;
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 public class APIHook implements MessageHook {
 
+    public static final int DEFAULT_HISTORY_LIMIT = 50;
+    public static final int MAX_HISTORY_LIMIT = 1000;
+
     public void onConnect(PresenceChange change, MessageContents greeting) {
         /* NOP */
     }
@@ -27,6 +31,8 @@ public class APIHook implements MessageHook {
                 return handleBroadcast(message);
             case "who":
                 return handleWho(message);
+            case "history":
+                return handleHistory(message);
             default:
                 return false;
         }
@@ -62,7 +68,7 @@ public class APIHook implements MessageHook {
             "type", "unicast"));
         msg.getRoom().sendUnicast(recipient, new MessageContents("unicast")
             .id(id).from((String) msg.getSource().getExtraData().get("id"))
-            .to(cnt.getTo()).data(cnt.getData()));
+            .to(cnt.getTo()).data(cnt.getRawData()));
         return true;
     }
 
@@ -73,7 +79,7 @@ public class APIHook implements MessageHook {
             "type", "broadcast"));
         msg.getRoom().sendBroadcast(new MessageContents("broadcast").id(id)
             .from((String) msg.getSource().getExtraData().get("id"))
-            .data(msg.getData().getData()));
+            .data(msg.getData().getRawData()));
         return true;
     }
 
@@ -81,15 +87,60 @@ public class APIHook implements MessageHook {
         if (msg.getRoom().getName() == null) return false;
         JSONObject rdata = new JSONObject();
         Room room = msg.getRoom();
-        synchronized (room) {
-            for (ClientConnection conn : room.getClients()) {
-                String id = (String) conn.getExtraData().get("id");
-                UUID uuid = (UUID) conn.getExtraData().get("uuid");
-                rdata.put(id, Util.createJSONObject("uuid", uuid));
-            }
+        for (ClientConnection conn : room.getClients()) {
+            String id = (String) conn.getExtraData().get("id");
+            UUID uuid = (UUID) conn.getExtraData().get("uuid");
+            rdata.put(id, Util.createJSONObject("uuid", uuid));
         }
         msg.sendResponse(new MessageContents("who").data(rdata));
         return true;
     }
 
+    protected boolean handleHistory(Message msg) {
+        Room room = msg.getRoom();
+        if (room.getName() == null || ! (room instanceof RoomDistributor))
+            return false;
+        MessageHistory history = ((RoomDistributor) room).getHistory();
+        RoomLogStore store = ((RoomDistributor) room).getLogStore();
+        if (history == null && store == null) return false;
+        String before = null, after = null;
+        int limit = DEFAULT_HISTORY_LIMIT;
+        Object data = msg.getData().getData();
+        if (data instanceof JSONObject) {
+            JSONObject req = (JSONObject) data;
+            before = req.optString("before", null);
+            after = req.optString("after", null);
+            limit = req.optInt("limit", DEFAULT_HISTORY_LIMIT);
+        }
+        limit = Math.max(0, Math.min(limit, MAX_HISTORY_LIMIT));
+        MessageHistory.Page page = null;
+        // The in-memory history is preferred if it can answer the request
+        // completely.
+        if (history != null) {
+            if (after != null) {
+                page = history.getAfter(after, limit);
+                String oldest = history.getOldestID();
+                if (oldest == null || after.compareTo(oldest) < 0)
+                    page = (store == null) ? page : null;
+            } else {
+                page = history.getBefore(before, limit);
+                if (page.getEntries().size() < limit && store != null)
+                    page = null;
+            }
+        }
+        if (page == null) {
+            page = (after != null) ?
+                store.getAfter(room.getName(), after, limit) :
+                store.getBefore(room.getName(), before, limit);
+        }
+        if (page == null) {
+            msg.sendResponse(ProtocolError.NO_HISTORY.makeMessage());
+            return true;
+        }
+        msg.sendResponse(new MessageContents("history").withData(
+            "messages", new JSONArray(page.getEntries()),
+            "more", page.hasMore()));
+        return true;
+    }
+
 }
@@ -1,63 +1,246 @@
 package net.instant.proto;
 
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
 import net.instant.api.ClientConnection;
 import net.instant.api.Room;
 import net.instant.api.RoomGroup;
+import net.instant.util.Util;
+import net.instant.util.WeakIndex;
+import net.instant.util.config.Configuration;
+import net.instant.ws.InstantWebSocketImpl;
+import org.java_websocket.WebSocket;
 
 public class MessageDistributor implements RoomGroup {
 
-    private final Map<String, RoomDistributor> rooms;
-    private final Map<ClientConnection, RoomDistributor> clRooms;
-    private final Map<String, ClientConnection> clIndex;
+    private static final Logger LOGGER = Logger.getLogger("MsgDistr");
 
+    /* Key of the client connections' private data entry holding the room
+     * they are in, for connections which cannot hold it themselves (see
+     * InstantWebSocketImpl). Kept there instead of in a map here so that
+     * looking a client's room up does not involve any shared state. */
+    private static final String K_ROOM = "room-distributor";
+
+    private static final String K_GRACE = "instant.rooms.gracePeriod";
+    private static final String K_HISTORY_MESSAGES =
+        "instant.rooms.history.maxMessages";
+    private static final String K_HISTORY_BYTES =
+        "instant.rooms.history.maxBytes";
+
+    public static final long DEFAULT_GRACE_PERIOD = 60000;
+    public static final int DEFAULT_HISTORY_MESSAGES = 0;
+    public static final long DEFAULT_HISTORY_BYTES = 1048576;
+
+    public static int GC_INTERVAL = 60000;
+
+    private final ConcurrentMap<String, RoomDistributor> rooms;
+    private final ConcurrentMap<String, ClientConnection> clIndex;
+    /* Rooms removed from the above which might still be referenced from
+     * somewhere (e.g. a plugin); those are revived when requested again so
+     * that room identity is preserved. Guards the creation and retirement
+     * of rooms. */
+    private final WeakIndex<String, RoomDistributor> retired;
+    private final OutboundLimiter limiter;
+    private final RoomDistributor noRoom;
+    private volatile long gracePeriod;
+    private volatile int historyMessages;
+    private volatile long historyBytes;
+    private volatile RoomLogStore logStore;
+
+    public MessageDistributor(OutboundLimiter limiter, long gracePeriod) {
+        this.rooms = new ConcurrentHashMap<String, RoomDistributor>();
+        this.clIndex = new ConcurrentHashMap<String, ClientConnection>();
+        this.retired = new WeakIndex<String, RoomDistributor>();
+        this.limiter = limiter;
+        this.noRoom = new RoomDistributor(this, null, limiter);
+        this.gracePeriod = gracePeriod;
+        this.historyMessages = DEFAULT_HISTORY_MESSAGES;
+        this.historyBytes = DEFAULT_HISTORY_BYTES;
+    }
+    public MessageDistributor(Configuration cfg) {
+        this(new OutboundLimiter(cfg),
+             Util.parseLong(cfg.get(K_GRACE), DEFAULT_GRACE_PERIOD));
+        setHistoryLimits((int) Util.parseLong(cfg.get(K_HISTORY_MESSAGES),
+                                              DEFAULT_HISTORY_MESSAGES),
+                         Util.parseLong(cfg.get(K_HISTORY_BYTES),
+                                        DEFAULT_HISTORY_BYTES));
+        setLogStore(RoomLogStore.fromConfig(cfg));
+    }
     public MessageDistributor() {
-        rooms = new HashMap<String, RoomDistributor>();
-        clRooms = new HashMap<ClientConnection, RoomDistributor>();
-        clIndex = new HashMap<String, ClientConnection>();
+        this(new OutboundLimiter(), DEFAULT_GRACE_PERIOD);
+    }
+
+    public OutboundLimiter getLimiter() {
+        return limiter;
+    }
+
+    /**
+     * How long (in milliseconds) an empty room is retained before being
+     * garbage-collected.
+     */
+    public long getGracePeriod() {
+        return gracePeriod;
+    }
+    public void setGracePeriod(long p) {
+        gracePeriod = p;
+    }
+
+    /**
+     * The size limits of the message histories of newly created rooms.
+     * A non-positive message limit disables histories; a negative byte limit
+     * disables that limit.
+     */
+    public int getHistoryMessages() {
+        return historyMessages;
+    }
+    public long getHistoryBytes() {
+        return historyBytes;
+    }
+    public void setHistoryLimits(int messages, long bytes) {
+        historyMessages = messages;
+        historyBytes = bytes;
+    }
+
+    /**
+     * The durable message store newly created rooms record their messages
+     * in, or null if there is none.
+     */
+    public RoomLogStore getLogStore() {
+        return logStore;
+    }
+    public void setLogStore(RoomLogStore s) {
+        logStore = s;
+    }
+
+    /**
+     * The amount of rooms currently held on to (including empty ones which
+     * have not been garbage-collected yet).
+     */
+    public int getRoomCount() {
+        return rooms.size();
     }
 
     public Set<Room> getActiveRooms() {
-        Set<Room> ret = new HashSet<Room>();
-        synchronized (this) {
-            for (RoomDistributor d : rooms.values()) {
-                if (d.getName() != null) ret.add(d);
-            }
-        }
-        return ret;
+        return new HashSet<Room>(rooms.values());
     }
 
-    public synchronized RoomDistributor getRoom(String name) {
+    public RoomDistributor getRoom(String name) {
+        if (name == null) return noRoom;
         RoomDistributor ret = rooms.get(name);
         if (ret == null) {
-            ret = new RoomDistributor(this, name);
-            rooms.put(name, ret);
+            synchronized (retired) {
+                ret = rooms.get(name);
+                if (ret == null) {
+                    ret = retired.remove(name);
+                    if (ret != null) {
+                        ret.revive();
+                    } else {
+                        ret = createRoom(name);
+                    }
+                    rooms.put(name, ret);
+                }
+            }
         }
+        ret.touch();
         return ret;
     }
 
-    public synchronized RoomDistributor getRoom(ClientConnection client) {
-        return clRooms.get(client);
+    protected RoomDistributor createRoom(String name) {
+        int hm = historyMessages;
+        MessageHistory history = (hm <= 0) ? null :
+            new MessageHistory(hm, historyBytes);
+        return new RoomDistributor(this, name, limiter, history, logStore);
     }
 
-    public synchronized ClientConnection getClient(String id) {
+    public RoomDistributor getRoom(ClientConnection client) {
+        WebSocket ws = client.getConnection();
+        if (ws instanceof InstantWebSocketImpl)
+            return (RoomDistributor) ((InstantWebSocketImpl) ws).getRoom();
+        return (RoomDistributor) client.getPrivateData().get(K_ROOM);
+    }
+
+    private void setRoom(ClientConnection client, RoomDistributor room) {
+        WebSocket ws = client.getConnection();
+        if (ws instanceof InstantWebSocketImpl) {
+            ((InstantWebSocketImpl) ws).setRoom(room);
+        } else {
+            client.getPrivateData().put(K_ROOM, room);
+        }
+    }
+
+    public ClientConnection getClient(String id) {
         return clIndex.get(id);
     }
 
-    public synchronized void add(ClientConnection conn,
-                                 RoomDistributor room) {
-        room.add(conn);
-        clRooms.put(conn, room);
+    /**
+     * Make conn a member of room.
+     * Returns the room the client actually joined; this is only different
+     * from room if the latter has been garbage-collected while being
+     * unreferenced.
+     */
+    public RoomDistributor add(ClientConnection conn, RoomDistributor room) {
+        while (! room.acquire()) {
+            // The room has been retired, but gc() might not have replaced
+            // it yet; do that here so that getRoom() does not return it
+            // again.
+            unmap(room);
+            room = getRoom(room.getName());
+        }
+        setRoom(conn, room);
         clIndex.put((String) conn.getExtraData().get("id"), conn);
+        room.add(conn);
+        return room;
     }
-    public synchronized RoomDistributor remove(ClientConnection conn) {
-        RoomDistributor r = clRooms.remove(conn);
-        if (r != null) r.remove(conn);
-        clIndex.remove((String) conn.getExtraData().get("id"));
+    public RoomDistributor remove(ClientConnection conn) {
+        // The private data entry (if any) is nulled out instead of being
+        // removed to avoid structurally modifying the map under potential
+        // concurrent readers.
+        RoomDistributor r = getRoom(conn);
+        if (r == null) return null;
+        setRoom(conn, null);
+        r.remove(conn);
+        r.release();
+        clIndex.remove((String) conn.getExtraData().get("id"), conn);
         return r;
     }
 
+    public void gc() {
+        long threshold = System.currentTimeMillis() - gracePeriod;
+        int count = 0;
+        for (RoomDistributor r : rooms.values()) {
+            if (! r.retire(threshold)) continue;
+            unmap(r);
+            count++;
+        }
+        if (count != 0)
+            LOGGER.fine("Retired " + count + " empty rooms");
+        RoomLogStore ls = logStore;
+        if (ls != null) {
+            count = ls.closeIdle(threshold);
+            if (count != 0)
+                LOGGER.fine("Closed " + count + " idle room logs");
+        }
+    }
+
+    /* Move a retired room from rooms to retired (unless that has happened
+     * already, possibly followed by its revival). */
+    private void unmap(RoomDistributor r) {
+        synchronized (retired) {
+            if (r.getReferenceCount() < 0 && rooms.remove(r.getName(), r))
+                retired.put(r.getName(), r);
+        }
+    }
+
+    public Runnable getGCTask() {
+        return new Runnable() {
+            public void run() {
+                LOGGER.fine("Garbage-collecting rooms...");
+                gc();
+            }
+        };
+    }
+
 }
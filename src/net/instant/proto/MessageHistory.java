@@ -0,0 +1,199 @@
+package net.instant.proto;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.json.JSONString;
+
+/**
+ * A bounded in-memory record of the most recent messages of a room.
+ * Messages are kept in their serialized form and ordered by their ID-s
+ * (which, as generated by UniqueCounter, sort lexicographically in the same
+ * order as numerically); the oldest ones are discarded when either the
+ * message or the byte limit is exceeded.
+ */
+public class MessageHistory {
+
+    public static class Entry implements JSONString {
+
+        private final String id;
+        private final String text;
+        private final long size;
+
+        public Entry(String id, String text, long size) {
+            this.id = id;
+            this.text = text;
+            this.size = size;
+        }
+
+        public String getID() {
+            return id;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public String toJSONString() {
+            return text;
+        }
+
+    }
+
+    public static class Page {
+
+        private final List<Entry> entries;
+        private final boolean more;
+
+        public Page(List<Entry> entries, boolean more) {
+            this.entries = entries;
+            this.more = more;
+        }
+
+        /**
+         * The entries of this page, in ascending ID order.
+         */
+        public List<Entry> getEntries() {
+            return entries;
+        }
+
+        /**
+         * Whether there are further entries beyond this page (in the
+         * direction of the query).
+         */
+        public boolean hasMore() {
+            return more;
+        }
+
+    }
+
+    private final Entry[] entries;
+    private final long maxBytes;
+    private int start;
+    private int count;
+    private long bytes;
+
+    public MessageHistory(int maxMessages, long maxBytes) {
+        if (maxMessages <= 0)
+            throw new IllegalArgumentException("Invalid history size " +
+                maxMessages);
+        this.entries = new Entry[maxMessages];
+        this.maxBytes = maxBytes;
+    }
+
+    public int getMaxMessages() {
+        return entries.length;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    public synchronized boolean isEmpty() {
+        return (count == 0);
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * The ID of the oldest message recorded, or null if there is none.
+     */
+    public synchronized String getOldestID() {
+        return (count == 0) ? null : get(0).getID();
+    }
+
+    /**
+     * Record a message.
+     * size is the (approximate) amount of bytes to account the message as;
+     * messages larger than the byte limit are not recorded at all.
+     */
+    public void add(String id, String text, long size) {
+        if (maxBytes >= 0 && size > maxBytes) return;
+        Entry ent = new Entry(id, text, size);
+        synchronized (this) {
+            while (count == entries.length ||
+                   maxBytes >= 0 && bytes + size > maxBytes)
+                removeFirst();
+            // Messages are usually recorded in ID order, so this loop rarely
+            // does anything.
+            int i = count++;
+            while (i > 0 && get(i - 1).getID().compareTo(id) > 0) {
+                set(i, get(i - 1));
+                i--;
+            }
+            set(i, ent);
+            bytes += size;
+        }
+    }
+
+    public synchronized void clear() {
+        while (count > 0) removeFirst();
+    }
+
+    /**
+     * Retrieve up to limit entries whose ID-s are less than before.
+     * If before is null, the most recent entries are returned.
+     */
+    public synchronized Page getBefore(String before, int limit) {
+        int end = (before == null) ? count : search(before, false);
+        int begin = Math.max(end - limit, 0);
+        return new Page(slice(begin, end), begin > 0);
+    }
+
+    /**
+     * Retrieve up to limit entries whose ID-s are greater than after.
+     */
+    public synchronized Page getAfter(String after, int limit) {
+        int begin = search(after, true);
+        int end = (int) Math.min((long) begin + limit, count);
+        return new Page(slice(begin, end), end < count);
+    }
+
+    /* Find the index of the first entry whose ID is not less than id (or,
+     * if after is true, greater than id). */
+    private int search(String id, boolean after) {
+        int lo = 0, hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = get(mid).getID().compareTo(id);
+            if (cmp < 0 || after && cmp == 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private List<Entry> slice(int begin, int end) {
+        if (begin >= end) return Collections.emptyList();
+        List<Entry> ret = new ArrayList<Entry>(end - begin);
+        for (int i = begin; i < end; i++) ret.add(get(i));
+        return ret;
+    }
+
+    private void removeFirst() {
+        bytes -= entries[start].getSize();
+        entries[start] = null;
+        start = (start + 1) % entries.length;
+        count--;
+    }
+
+    private Entry get(int index) {
+        return entries[(start + index) % entries.length];
+    }
+    private void set(int index, Entry ent) {
+        entries[(start + index) % entries.length] = ent;
+    }
+
+}
@@ -0,0 +1,156 @@
+package net.instant.proto;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import net.instant.api.ClientConnection;
+import net.instant.util.Util;
+import net.instant.util.config.Configuration;
+import net.instant.ws.InstantWebSocketImpl;
+import org.java_websocket.WebSocket;
+import org.java_websocket.framing.CloseFrame;
+
+/**
+ * Per-connection caps on the amount of data waiting to be sent.
+ * The amount of pending data is taken from the connections' outgoing
+ * queues, which InstantWebSocketImpl replaces with OutputQueue-s that keep a
+ * running total of the bytes they hold; hence, checking a cap does not
+ * involve walking the queue. When a cap is hit, the message in question is
+ * dropped; depending on the policy, the connection is additionally closed.
+ * Merging queued messages is not offered as a policy since the queues are
+ * drained by the selector thread without any locking that would allow
+ * modifying messages that might already be partially written.
+ */
+public class OutboundLimiter {
+
+    private static final Logger LOGGER = Logger.getLogger("OutLimiter");
+
+    private static final String K_MAX_BYTES = "instant.outbound.maxBytes";
+    private static final String K_MAX_MESSAGES =
+        "instant.outbound.maxMessages";
+    private static final String K_POLICY = "instant.outbound.policy";
+
+    public enum Policy { DROP, DISCONNECT }
+
+    public static final long DEFAULT_MAX_BYTES = 4194304;
+    public static final int DEFAULT_MAX_MESSAGES = 1024;
+    public static final Policy DEFAULT_POLICY = Policy.DROP;
+
+    private final AtomicLong dropped;
+    private final AtomicLong evicted;
+    private volatile long maxBytes;
+    private volatile int maxMessages;
+    private volatile Policy policy;
+
+    public OutboundLimiter(long maxBytes, int maxMessages, Policy policy) {
+        this.dropped = new AtomicLong();
+        this.evicted = new AtomicLong();
+        this.maxBytes = maxBytes;
+        this.maxMessages = maxMessages;
+        this.policy = policy;
+    }
+    public OutboundLimiter(Configuration cfg) {
+        this(Util.parseLong(cfg.get(K_MAX_BYTES), DEFAULT_MAX_BYTES),
+             (int) Util.parseLong(cfg.get(K_MAX_MESSAGES),
+                                  DEFAULT_MAX_MESSAGES),
+             parsePolicy(cfg.get(K_POLICY)));
+    }
+    public OutboundLimiter() {
+        this(-1, -1, DEFAULT_POLICY);
+    }
+
+    /**
+     * The maximum amount of bytes pending for a single connection.
+     * Negative values disable the cap.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+    public void setMaxBytes(long max) {
+        maxBytes = max;
+    }
+
+    /**
+     * The maximum amount of messages pending for a single connection.
+     * Negative values disable the cap.
+     */
+    public int getMaxMessages() {
+        return maxMessages;
+    }
+    public void setMaxMessages(int max) {
+        maxMessages = max;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+    public void setPolicy(Policy p) {
+        policy = p;
+    }
+
+    /**
+     * The amount of messages not sent because of a cap being hit.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * The amount of connections closed because of a cap being hit.
+     */
+    public long getEvicted() {
+        return evicted.get();
+    }
+
+    /**
+     * Determine whether a message of the given size may be sent to conn.
+     * Returns null if the message may be sent, or the policy to apply
+     * otherwise (in which case the message is accounted as dropped, and
+     * evict() should be invoked if the policy is DISCONNECT). A message is
+     * always admitted if nothing is pending for the connection.
+     */
+    public Policy check(ClientConnection conn, long size) {
+        WebSocket ws = conn.getConnection();
+        if (! (ws instanceof InstantWebSocketImpl)) return null;
+        InstantWebSocketImpl impl = (InstantWebSocketImpl) ws;
+        int pending = impl.getPendingMessages();
+        if (pending == 0) return null;
+        long mb = maxBytes;
+        int mm = maxMessages;
+        if ((mm < 0 || pending < mm) &&
+                (mb < 0 || impl.getPendingBytes() + size <= mb))
+            return null;
+        dropped.incrementAndGet();
+        return policy;
+    }
+
+    public void evict(ClientConnection conn) {
+        WebSocket ws = conn.getConnection();
+        if (! ws.isOpen()) return;
+        LOGGER.info("Evicting slow connection " + conn);
+        evicted.incrementAndGet();
+        ws.closeConnection(CloseFrame.POLICY_VALIDATION,
+                           "Outgoing queue overflow");
+    }
+
+    /**
+     * Convenience function combining check() and evict().
+     * Returns whether the message may be sent.
+     */
+    public boolean admit(ClientConnection conn, long size) {
+        Policy p = check(conn, size);
+        if (p == Policy.DISCONNECT) evict(conn);
+        return (p == null);
+    }
+
+    private static Policy parsePolicy(String value) {
+        if (value == null) return DEFAULT_POLICY;
+        try {
+            return Policy.valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException exc) {
+            LOGGER.warning("Unknown outbound overflow policy " + value +
+                "; using " + DEFAULT_POLICY);
+            return DEFAULT_POLICY;
+        }
+    }
+
+}
@@ -13,6 +13,8 @@ public class ProtocolError {
         new ProtocolError("INVALID_TYPE", "Invalid message type");
     public static final ProtocolError NO_PARTICIPANT =
         new ProtocolError("NO_PARTICIPANT", "No such participant");
+    public static final ProtocolError NO_HISTORY =
+        new ProtocolError("NO_HISTORY", "Message history unavailable");
 
     private final String code;
     private final String message;
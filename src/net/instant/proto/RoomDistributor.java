@@ -1,37 +1,91 @@
 package net.instant.proto;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import net.instant.api.ClientConnection;
 import net.instant.api.MessageContents;
 import net.instant.api.Room;
 import net.instant.api.RoomGroup;
 import net.instant.util.UniqueCounter;
+import net.instant.ws.SharedTextFrame;
 import org.java_websocket.exceptions.WebsocketNotConnectedException;
 
 public class RoomDistributor implements Room {
 
     private final RoomGroup parent;
     private final String name;
-    private final Set<ClientConnection> clients;
+    private final OutboundLimiter limiter;
+    private final MessageHistory history;
+    private final RoomLogStore logStore;
+    // Immutable snapshots that are swapped out as a whole on every change;
+    // broadcasts and getClients() do not need to lock anything.
+    private final AtomicReference<Set<ClientConnection>> clients;
+    // Amount of clients holding on to the room, or -1 if the room has been
+    // retired by the parent.
+    private final AtomicInteger refs;
+    private volatile long lastUsed;
 
-    public RoomDistributor(RoomGroup parent, String name) {
+    public RoomDistributor(RoomGroup parent, String name,
+                           OutboundLimiter limiter, MessageHistory history,
+                           RoomLogStore logStore) {
         this.parent = parent;
         this.name = name;
-        this.clients = new LinkedHashSet<ClientConnection>();
+        this.limiter = limiter;
+        this.history = history;
+        this.logStore = logStore;
+        this.clients = new AtomicReference<Set<ClientConnection>>(
+            Collections.<ClientConnection>emptySet());
+        this.refs = new AtomicInteger();
+        this.lastUsed = System.currentTimeMillis();
+    }
+    public RoomDistributor(RoomGroup parent, String name,
+                           OutboundLimiter limiter) {
+        this(parent, name, limiter, null, null);
+    }
+    public RoomDistributor(RoomGroup parent, String name) {
+        this(parent, name, new OutboundLimiter());
     }
 
     public String getName() {
         return name;
     }
 
-    public synchronized Set<ClientConnection> getClients() {
-        return new LinkedHashSet<ClientConnection>(clients);
+    public OutboundLimiter getLimiter() {
+        return limiter;
+    }
+
+    /**
+     * The record of recent messages broadcast in this room, or null if
+     * history is not kept.
+     */
+    public MessageHistory getHistory() {
+        return history;
+    }
+
+    /**
+     * The durable store the messages broadcast in this room are recorded
+     * in, or null if there is none.
+     */
+    public RoomLogStore getLogStore() {
+        return logStore;
+    }
+
+    public Set<ClientConnection> getClients() {
+        return clients.get();
     }
 
     public void sendUnicast(ClientConnection client, MessageContents msg) {
+        // Sized (and, where possible, sent) in its encoded form, just like
+        // broadcasts.
+        SharedTextFrame frame = new SharedTextFrame(msg.toString());
+        if (! limiter.admit(client, frame.getEncoded().remaining())) return;
         try {
-            client.getConnection().send(msg.toString());
+            frame.sendTo(client.getConnection());
         } catch (WebsocketNotConnectedException exc) {
             // This one would have been lost anyway.
         }
@@ -41,15 +95,32 @@ public class RoomDistributor implements Room {
         if (name == null)
             throw new UnsupportedOperationException(
                 "Trying to broadcast outside any room");
-        String s = msg.toString();
-        synchronized (this) {
-            for (ClientConnection conn : clients) {
-                try {
-                    conn.getConnection().send(s);
-                } catch (WebsocketNotConnectedException exc) {
-                    // Ensure the message reaches the remaining room members.
-                }
+        SharedTextFrame frame = new SharedTextFrame(msg.toString());
+        long size = frame.getEncoded().remaining();
+        if (msg.getID() != null) {
+            if (history != null)
+                history.add(msg.getID(), frame.getText(), size);
+            if (logStore != null)
+                logStore.record(name, msg.getID(), frame.getText());
+        }
+        // Evictions are deferred until after the loop since closing a
+        // connection synchronously triggers a nested broadcast.
+        List<ClientConnection> evict = null;
+        for (ClientConnection conn : clients.get()) {
+            OutboundLimiter.Policy p = limiter.check(conn, size);
+            if (p == OutboundLimiter.Policy.DISCONNECT) {
+                if (evict == null) evict = new ArrayList<ClientConnection>();
+                evict.add(conn);
             }
+            if (p != null) continue;
+            try {
+                frame.sendTo(conn.getConnection());
+            } catch (WebsocketNotConnectedException exc) {
+                // Ensure the message reaches the remaining room members.
+            }
+        }
+        if (evict != null) {
+            for (ClientConnection conn : evict) limiter.evict(conn);
         }
     }
 
@@ -62,11 +133,75 @@ public class RoomDistributor implements Room {
             UniqueCounter.INSTANCE.getString() : null);
     }
 
-    public synchronized void add(ClientConnection client) {
-        clients.add(client);
+    public int getReferenceCount() {
+        return refs.get();
     }
-    public synchronized void remove(ClientConnection client) {
-        clients.remove(client);
+
+    public long getLastUsed() {
+        return lastUsed;
+    }
+    public void touch() {
+        lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Take a reference to the room.
+     * Returns false if the room has been retired; the caller must obtain
+     * a fresh instance from the parent then.
+     */
+    public boolean acquire() {
+        for (;;) {
+            int r = refs.get();
+            if (r < 0) return false;
+            if (refs.compareAndSet(r, r + 1)) return true;
+        }
+    }
+    public void release() {
+        touch();
+        refs.decrementAndGet();
+    }
+
+    /**
+     * Mark the room as unused if it has no references and has not been used
+     * since threshold.
+     * The in-memory history (if any) of a retired room is discarded (the
+     * messages remain available from the log store, if there is one).
+     * Returns whether the room has been retired.
+     */
+    public boolean retire(long threshold) {
+        if (lastUsed > threshold) return false;
+        if (! refs.compareAndSet(0, -1)) return false;
+        if (history != null) history.clear();
+        return true;
+    }
+    public boolean revive() {
+        touch();
+        return refs.compareAndSet(-1, 0);
+    }
+
+    public void add(ClientConnection client) {
+        for (;;) {
+            Set<ClientConnection> old = clients.get();
+            if (old.contains(client)) return;
+            Set<ClientConnection> upd =
+                new LinkedHashSet<ClientConnection>(old);
+            upd.add(client);
+            if (clients.compareAndSet(old,
+                    Collections.unmodifiableSet(upd)))
+                return;
+        }
+    }
+    public void remove(ClientConnection client) {
+        for (;;) {
+            Set<ClientConnection> old = clients.get();
+            if (! old.contains(client)) return;
+            Set<ClientConnection> upd =
+                new LinkedHashSet<ClientConnection>(old);
+            upd.remove(client);
+            if (clients.compareAndSet(old,
+                    Collections.unmodifiableSet(upd)))
+                return;
+        }
     }
 
 }
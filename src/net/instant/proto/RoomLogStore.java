@@ -0,0 +1,359 @@
+package net.instant.proto;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import net.instant.util.Encodings;
+import net.instant.util.UniqueCounter;
+import net.instant.util.Util;
+import net.instant.util.config.Configuration;
+import net.instant.util.logstore.SegmentedLog;
+
+/**
+ * Durable on-disk storage of the messages broadcast in rooms.
+ * Every room that has messages is assigned a SegmentedLog in a subdirectory
+ * of a common root directory. Messages are appended as they are broadcast
+ * and written out in batches by a regularly scheduled flush task; another
+ * task deletes segments that have exceeded the retention limits. Logs are
+ * opened on demand and closed again by closeIdle() when they are not used
+ * anymore.
+ */
+public class RoomLogStore implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger("RoomLogStore");
+
+    private static final String K_DIR = "instant.rooms.log.dir";
+    private static final String K_SEGMENT_SIZE =
+        "instant.rooms.log.segmentSize";
+    private static final String K_SEGMENT_AGE =
+        "instant.rooms.log.segmentAge";
+    private static final String K_MAX_AGE = "instant.rooms.log.maxAge";
+    private static final String K_MAX_SIZE = "instant.rooms.log.maxSize";
+
+    public static final long DEFAULT_SEGMENT_SIZE = 16777216;
+    public static final long DEFAULT_SEGMENT_AGE = 86400000;
+
+    public static int FLUSH_INTERVAL = 100;
+    public static int RETENTION_INTERVAL = 3600000;
+
+    private static final Pattern SAFE_NAME =
+        Pattern.compile("[a-zA-Z0-9_-]+");
+
+    private final File root;
+    private final long segmentSize;
+    private final long segmentAge;
+    /* The logs currently open, keyed by the names of their directories
+     * (which map to rooms one-to-one). */
+    private final ConcurrentMap<String, SegmentedLog> logs;
+    private volatile long maxAge;
+    private volatile long maxSize;
+    private volatile boolean closed;
+
+    public RoomLogStore(File root, long segmentSize, long segmentAge) {
+        this.root = root;
+        this.segmentSize = segmentSize;
+        this.segmentAge = segmentAge;
+        this.logs = new ConcurrentHashMap<String, SegmentedLog>();
+        this.maxAge = -1;
+        this.maxSize = -1;
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    /**
+     * How old (in milliseconds) messages may become before being deleted.
+     * Negative values disable the limit.
+     */
+    public long getMaxAge() {
+        return maxAge;
+    }
+    public void setMaxAge(long age) {
+        maxAge = age;
+    }
+
+    /**
+     * How many bytes a single room's log may occupy before the oldest
+     * messages are deleted. Negative values disable the limit.
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+    public void setMaxSize(long size) {
+        maxSize = size;
+    }
+
+    /**
+     * Return the log of the given room, opening or creating it if
+     * necessary.
+     */
+    public SegmentedLog getLog(String room) throws IOException {
+        String name = directoryName(room);
+        SegmentedLog ret = logs.get(name);
+        if (ret != null) return ret;
+        synchronized (logs) {
+            ret = logs.get(name);
+            if (ret != null) return ret;
+            if (closed) throw new IOException("Log store is closed");
+            ret = openLog(name);
+            logs.put(name, ret);
+            return ret;
+        }
+    }
+
+    /**
+     * Return the log of the given room if it exists, or null.
+     */
+    public SegmentedLog getExistingLog(String room) throws IOException {
+        String name = directoryName(room);
+        SegmentedLog ret = logs.get(name);
+        if (ret != null) return ret;
+        if (! new File(root, name).isDirectory()) return null;
+        return getLog(room);
+    }
+
+    /**
+     * Record a message broadcast in the given room.
+     * Messages whose ID-s are not in the format generated by UniqueCounter
+     * are ignored.
+     */
+    public void record(String room, String id, String text) {
+        long numID;
+        try {
+            numID = parseID(id);
+        } catch (NumberFormatException exc) {
+            return;
+        }
+        byte[] data = text.getBytes(StandardCharsets.UTF_8);
+        try {
+            // The log might be closed concurrently by closeIdle(); a fresh
+            // one is opened then.
+            for (;;) {
+                if (getLog(room).append(numID, data)) break;
+            }
+        } catch (IOException exc) {
+            LOGGER.log(Level.SEVERE, "Could not open log of room " + room,
+                       exc);
+        }
+    }
+
+    /**
+     * Retrieve up to limit messages of room with ID-s less than before (or
+     * the most recent ones if before is null).
+     * Returns null if the messages cannot be retrieved.
+     */
+    public MessageHistory.Page getBefore(String room, String before,
+                                         int limit) {
+        try {
+            long numID = (before == null) ? -1L : parseID(before);
+            for (;;) {
+                SegmentedLog log = getExistingLog(room);
+                if (log == null)
+                    return new MessageHistory.Page(
+                        new ArrayList<MessageHistory.Entry>(), false);
+                List<SegmentedLog.Record> records =
+                    log.readBefore(numID, limit);
+                // Otherwise, the log has been closed concurrently.
+                if (records != null) return makePage(records, limit);
+            }
+        } catch (NumberFormatException exc) {
+            return null;
+        } catch (IOException exc) {
+            LOGGER.log(Level.SEVERE, "Could not read log of room " + room,
+                       exc);
+            return null;
+        }
+    }
+
+    /**
+     * Retrieve up to limit messages of room with ID-s greater than after.
+     * Returns null if the messages cannot be retrieved.
+     */
+    public MessageHistory.Page getAfter(String room, String after,
+                                        int limit) {
+        try {
+            long numID = parseID(after);
+            for (;;) {
+                SegmentedLog log = getExistingLog(room);
+                if (log == null)
+                    return new MessageHistory.Page(
+                        new ArrayList<MessageHistory.Entry>(), false);
+                List<SegmentedLog.Record> records =
+                    log.readAfter(numID, limit);
+                if (records != null) return makePage(records, limit);
+            }
+        } catch (NumberFormatException exc) {
+            return null;
+        } catch (IOException exc) {
+            LOGGER.log(Level.SEVERE, "Could not read log of room " + room,
+                       exc);
+            return null;
+        }
+    }
+
+    public void flush() {
+        for (SegmentedLog log : logs.values()) {
+            try {
+                log.flush();
+            } catch (IOException exc) {
+                LOGGER.log(Level.SEVERE, "Could not write room log " +
+                    log.getDirectory(), exc);
+            }
+        }
+    }
+
+    /**
+     * Delete the stored messages exceeding the retention limits.
+     * This covers every room that has a log in the store's directory,
+     * including those whose logs are not open (such as rooms that have not
+     * been used since the server started).
+     */
+    public void enforceRetention() {
+        long ma = maxAge, ms = maxSize;
+        if (ma < 0 && ms < 0) return;
+        long minTime = (ma < 0) ? 0 : System.currentTimeMillis() - ma;
+        String[] names = root.list();
+        if (names == null) return;
+        for (String name : names) {
+            if (! new File(root, name).isDirectory()) continue;
+            try {
+                enforceRetention(name, minTime, ms);
+            } catch (IOException exc) {
+                LOGGER.log(Level.SEVERE, "Could not clean up room log " +
+                    new File(root, name), exc);
+            }
+        }
+    }
+
+    /**
+     * Close the logs that have not been accessed since threshold (a UNIX
+     * timestamp in milliseconds); they are reopened when they are needed
+     * again. Returns the amount of logs closed.
+     */
+    public int closeIdle(long threshold) {
+        int count = 0;
+        for (Map.Entry<String, SegmentedLog> ent : logs.entrySet()) {
+            SegmentedLog log = ent.getValue();
+            if (log.getLastAccess() > threshold) continue;
+            // Holding the lock ensures that the log is not opened again
+            // before it is completely closed.
+            synchronized (logs) {
+                if (! logs.remove(ent.getKey(), log)) continue;
+                try {
+                    log.close();
+                } catch (IOException exc) {
+                    LOGGER.log(Level.SEVERE, "Could not close room log " +
+                        log.getDirectory(), exc);
+                }
+            }
+            count++;
+        }
+        return count;
+    }
+
+    public void close() throws IOException {
+        synchronized (logs) {
+            closed = true;
+        }
+        IOException error = null;
+        for (SegmentedLog log : logs.values()) {
+            try {
+                log.close();
+            } catch (IOException exc) {
+                error = exc;
+            }
+        }
+        logs.clear();
+        if (error != null) throw error;
+    }
+
+    public Runnable getFlushTask() {
+        return new Runnable() {
+            public void run() {
+                flush();
+            }
+        };
+    }
+
+    public Runnable getRetentionTask() {
+        return new Runnable() {
+            public void run() {
+                LOGGER.fine("Enforcing room log retention...");
+                enforceRetention();
+            }
+        };
+    }
+
+    private SegmentedLog openLog(String name) throws IOException {
+        return new SegmentedLog(new File(root, name), segmentSize,
+                                segmentAge);
+    }
+
+    private void enforceRetention(String name, long minTime, long maxSize)
+            throws IOException {
+        SegmentedLog log = logs.get(name);
+        if (log == null) {
+            // Logs that are not open are only opened for the duration of
+            // this; the lock keeps them from being opened concurrently.
+            synchronized (logs) {
+                log = logs.get(name);
+                if (log == null) {
+                    if (closed) return;
+                    log = openLog(name);
+                    try {
+                        log.enforceRetention(minTime, maxSize);
+                    } finally {
+                        log.close();
+                    }
+                    return;
+                }
+            }
+        }
+        log.enforceRetention(minTime, maxSize);
+    }
+
+    private static MessageHistory.Page makePage(
+            List<SegmentedLog.Record> records, int limit) {
+        List<MessageHistory.Entry> entries =
+            new ArrayList<MessageHistory.Entry>(records.size());
+        for (SegmentedLog.Record r : records) {
+            entries.add(new MessageHistory.Entry(
+                UniqueCounter.INSTANCE.getString(r.getID()),
+                new String(r.getData(), StandardCharsets.UTF_8),
+                r.getData().length));
+        }
+        return new MessageHistory.Page(entries, entries.size() >= limit);
+    }
+
+    private static long parseID(String id) throws NumberFormatException {
+        if (id.length() != 16) throw new NumberFormatException(id);
+        return Long.parseUnsignedLong(id, 16);
+    }
+
+    private static String directoryName(String room) {
+        if (SAFE_NAME.matcher(room).matches()) return room;
+        return "=" + Encodings.toHex(room.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static RoomLogStore fromConfig(Configuration cfg) {
+        String dir = cfg.get(K_DIR);
+        if (! Util.nonempty(dir)) return null;
+        RoomLogStore ret = new RoomLogStore(new File(dir),
+            Util.parseLong(cfg.get(K_SEGMENT_SIZE), DEFAULT_SEGMENT_SIZE),
+            Util.parseLong(cfg.get(K_SEGMENT_AGE), DEFAULT_SEGMENT_AGE));
+        ret.setMaxAge(Util.parseLong(cfg.get(K_MAX_AGE), -1));
+        ret.setMaxSize(Util.parseLong(cfg.get(K_MAX_SIZE), -1));
+        return ret;
+    }
+
+}
@@ -0,0 +1,335 @@
+package net.instant.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.instant.api.RequestResponseData;
+import net.instant.util.config.Configuration;
+
+/**
+ * An HTTP access log written by a background thread.
+ * Requests are snapshotted into a bounded queue by log(); the writer thread
+ * formats them (reusing the formatted datetime of the previous entry where
+ * possible) and writes them out in batches. When the queue is full, the
+ * entry is either dropped (and counted) or log() blocks until there is
+ * space, depending on the policy.
+ * If the log is backed by a file, that file may be rotated (i.e. renamed to
+ * have a timestamp appended and replaced by a fresh one) when it exceeds a
+ * given size or age.
+ */
+public class AccessLog implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger("AccessLog");
+
+    private static final String K_QUEUE_SIZE = "instant.http.log.queueSize";
+    private static final String K_POLICY = "instant.http.log.policy";
+    private static final String K_MAX_SIZE = "instant.http.log.maxSize";
+    private static final String K_MAX_AGE = "instant.http.log.maxAge";
+
+    public enum Policy { DROP, BLOCK }
+
+    public static final int DEFAULT_QUEUE_SIZE = 4096;
+    public static final Policy DEFAULT_POLICY = Policy.DROP;
+
+    /* The maximum amount of entries written in one go. */
+    public static final int BATCH_SIZE = 256;
+
+    /* How long close() waits for pending entries to be written. */
+    public static final long CLOSE_TIMEOUT = 5000;
+
+    private static final String LINE_SEPARATOR =
+        System.getProperty("line.separator");
+
+    private final BlockingQueue<Formats.HTTPLog.Entry> queue;
+    private final File file;
+    private final AtomicLong dropped;
+    private final AtomicLong written;
+    private volatile Policy policy;
+    private volatile long maxSize;
+    private volatile long maxAge;
+    private volatile boolean closed;
+    private volatile Thread writer;
+    // The following are only accessed by the writer thread (or after it
+    // has finished).
+    private PrintStream out;
+    private long openedAt;
+    private long cachedSecond;
+    private String cachedDatetime;
+    private long reportedDropped;
+
+    protected AccessLog(PrintStream out, File file, int queueSize,
+                        Policy policy) {
+        this.queue = new ArrayBlockingQueue<Formats.HTTPLog.Entry>(
+            queueSize);
+        this.file = file;
+        this.dropped = new AtomicLong();
+        this.written = new AtomicLong();
+        this.policy = policy;
+        this.maxSize = -1;
+        this.maxAge = -1;
+        this.out = out;
+        this.openedAt = System.currentTimeMillis();
+        this.cachedSecond = Long.MIN_VALUE;
+    }
+    public AccessLog(PrintStream out, int queueSize, Policy policy) {
+        this(out, null, queueSize, policy);
+    }
+    public AccessLog(PrintStream out) {
+        this(out, DEFAULT_QUEUE_SIZE, DEFAULT_POLICY);
+    }
+    public AccessLog(File file, int queueSize, Policy policy)
+            throws IOException {
+        this(openFile(file), file, queueSize, policy);
+    }
+
+    /**
+     * The file backing this log, or null if it writes to a stream that
+     * is not managed by it.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+    public void setPolicy(Policy p) {
+        policy = p;
+    }
+
+    /**
+     * The size (in bytes) beyond which the log file is rotated.
+     * Negative values disable size-based rotation.
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+    public void setMaxSize(long s) {
+        maxSize = s;
+    }
+
+    /**
+     * The age (in milliseconds) beyond which the log file is rotated.
+     * Negative values disable age-based rotation.
+     */
+    public long getMaxAge() {
+        return maxAge;
+    }
+    public void setMaxAge(long a) {
+        maxAge = a;
+    }
+
+    /**
+     * The amount of entries waiting to be written.
+     */
+    public int getPending() {
+        return queue.size();
+    }
+
+    /**
+     * The amount of entries discarded because the queue was full (or the
+     * log was closed).
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * The amount of entries written so far.
+     */
+    public long getWritten() {
+        return written.get();
+    }
+
+    public void log(RequestResponseData req) {
+        Formats.HTTPLog.Entry ent = new Formats.HTTPLog.Entry(req);
+        if (closed) {
+            dropped.incrementAndGet();
+            return;
+        }
+        if (writer == null) start();
+        if (queue.offer(ent)) return;
+        if (policy == Policy.BLOCK) {
+            try {
+                queue.put(ent);
+                return;
+            } catch (InterruptedException exc) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        dropped.incrementAndGet();
+    }
+
+    public synchronized void start() {
+        if (writer != null) return;
+        writer = new Thread("HTTP log writer") {
+            public void run() {
+                runWriter();
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Write out the pending entries and stop the writer thread.
+     * Entries logged afterwards are dropped.
+     */
+    public void close() throws IOException {
+        Thread w;
+        synchronized (this) {
+            closed = true;
+            w = writer;
+        }
+        if (w != null) {
+            w.interrupt();
+            try {
+                w.join(CLOSE_TIMEOUT);
+            } catch (InterruptedException exc) {
+                Thread.currentThread().interrupt();
+            }
+            if (w.isAlive()) return;
+        } else {
+            writeBatch(drain(Integer.MAX_VALUE));
+        }
+        if (file != null && out != null) out.close();
+    }
+
+    private void runWriter() {
+        for (;;) {
+            Formats.HTTPLog.Entry first;
+            try {
+                first = queue.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException exc) {
+                first = null;
+            }
+            if (first == null) {
+                if (! closed) continue;
+                // Whatever is left is written below; entries are not added
+                // after the closing.
+                writeBatch(drain(Integer.MAX_VALUE));
+                return;
+            }
+            List<Formats.HTTPLog.Entry> batch = drain(BATCH_SIZE - 1);
+            batch.add(0, first);
+            writeBatch(batch);
+        }
+    }
+
+    private List<Formats.HTTPLog.Entry> drain(int max) {
+        List<Formats.HTTPLog.Entry> ret =
+            new ArrayList<Formats.HTTPLog.Entry>();
+        queue.drainTo(ret, max);
+        return ret;
+    }
+
+    private void writeBatch(List<Formats.HTTPLog.Entry> batch) {
+        long d = dropped.get();
+        if (d != reportedDropped) {
+            LOGGER.warning("Dropped " + (d - reportedDropped) +
+                " HTTP log entries (" + d + " in total)");
+            reportedDropped = d;
+        }
+        if (batch.isEmpty()) return;
+        maybeRotate();
+        if (out == null) {
+            dropped.addAndGet(batch.size());
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Formats.HTTPLog.Entry ent : batch) {
+            sb.append(ent.format(formatDatetime(ent.getTimestamp())))
+              .append(LINE_SEPARATOR);
+        }
+        out.print(sb);
+        out.flush();
+        if (out.checkError()) {
+            LOGGER.severe("Could not write HTTP log");
+        } else {
+            written.addAndGet(batch.size());
+        }
+    }
+
+    private String formatDatetime(long ts) {
+        // The format has a resolution of one second.
+        long second = ts / 1000;
+        if (second != cachedSecond) {
+            cachedSecond = second;
+            cachedDatetime = Formats.HTTPLog.formatDatetime(ts);
+        }
+        return cachedDatetime;
+    }
+
+    private void maybeRotate() {
+        if (file == null) return;
+        long ms = maxSize, ma = maxAge, now = System.currentTimeMillis();
+        if (out != null && (ms < 0 || file.length() < ms) &&
+                (ma < 0 || now - openedAt < ma))
+            return;
+        if (out != null) {
+            out.close();
+            File dest = rotatedName(now);
+            if (! file.renameTo(dest))
+                LOGGER.warning("Could not rotate HTTP log " + file +
+                    " to " + dest);
+        }
+        try {
+            out = openFile(file);
+        } catch (IOException exc) {
+            LOGGER.log(Level.SEVERE, "Could not open HTTP log " + file,
+                       exc);
+            out = null;
+        }
+        openedAt = now;
+    }
+
+    private File rotatedName(long now) {
+        SimpleDateFormat fmt = new SimpleDateFormat("yyyyMMdd-HHmmss",
+                                                    Locale.ROOT);
+        String base = file.getPath() + "." + fmt.format(new Date(now));
+        File ret = new File(base);
+        for (int i = 1; ret.exists(); i++) ret = new File(base + "." + i);
+        return ret;
+    }
+
+    private static PrintStream openFile(File file) throws IOException {
+        return new PrintStream(new FileOutputStream(file, true), false);
+    }
+
+    public static AccessLog fromConfig(Configuration cfg, PrintStream out,
+                                       File file) throws IOException {
+        int queueSize = (int) Util.parseLong(cfg.get(K_QUEUE_SIZE),
+                                             DEFAULT_QUEUE_SIZE);
+        Policy policy = parsePolicy(cfg.get(K_POLICY));
+        if (file == null) return new AccessLog(out, queueSize, policy);
+        AccessLog ret = new AccessLog(file, queueSize, policy);
+        ret.setMaxSize(Util.parseLong(cfg.get(K_MAX_SIZE), -1));
+        ret.setMaxAge(Util.parseLong(cfg.get(K_MAX_AGE), -1));
+        return ret;
+    }
+
+    private static Policy parsePolicy(String value) {
+        if (value == null) return DEFAULT_POLICY;
+        try {
+            return Policy.valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException exc) {
+            LOGGER.warning("Unknown HTTP log overflow policy " + value +
+                "; using " + DEFAULT_POLICY);
+            return DEFAULT_POLICY;
+        }
+    }
+
+}
@@ -72,6 +72,16 @@ public final class Encodings {
         }
         return new String(ret);
     }
+    /**
+     * Write the 16 (uppercase) hexadecimal digits of v into dest, starting
+     * at offset.
+     */
+    public static void toHex(long v, char[] dest, int offset) {
+        for (int i = offset + 15; i >= offset; i--) {
+            dest[i] = HEX[(int) v & 0x0F];
+            v >>>= 4;
+        }
+    }
     public static byte[] fromHex(String data) {
         data = removeWhitespace(data);
         if (data.length() % 2 != 0)
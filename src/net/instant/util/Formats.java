@@ -102,21 +102,69 @@ public final class Formats {
             return sb.append("\"").toString();
         }
 
+        /* A snapshot of the data logged about a request, which can be
+         * formatted later (and elsewhere) without touching the request. */
+        public static class Entry {
+
+            private final InetSocketAddress address;
+            private final String rfc1413Identity;
+            private final String authIdentity;
+            private final long timestamp;
+            private final String requestLine;
+            private final int statusCode;
+            private final long responseLength;
+            private final String referrer;
+            private final String userAgent;
+            private final Map<String, Object> extraData;
+
+            public Entry(RequestResponseData req) {
+                Map<String, Object> extra = req.getExtraData();
+                this.address = req.getAddress();
+                this.rfc1413Identity = req.getRFC1413Identity();
+                this.authIdentity = req.getAuthIdentity();
+                this.timestamp = req.getTimestamp();
+                this.requestLine = req.getMethod() + ' ' + req.getPath() +
+                    ' ' + req.getHTTPVersion();
+                this.statusCode = req.getStatusCode();
+                this.responseLength = req.getResponseLength();
+                this.referrer = req.getReferrer();
+                this.userAgent = req.getUserAgent();
+                this.extraData = (extra == null || extra.isEmpty()) ? null :
+                    new LinkedHashMap<String, Object>(extra);
+            }
+
+            public long getTimestamp() {
+                return timestamp;
+            }
+
+            /**
+             * Format this entry using the given (pre-formatted) datetime.
+             * datetime should be what formatDatetime(getTimestamp())
+             * returns; it is passed in to allow callers to cache it.
+             */
+            public String format(String datetime) {
+                StringBuilder sb = new StringBuilder();
+                sb.append(formatAddress(address)).append(' ')
+                  .append(escape(rfc1413Identity)).append(' ')
+                  .append(escape(authIdentity)).append(' ')
+                  .append(datetime).append(' ')
+                  .append(quote(requestLine)).append(' ')
+                  .append(statusCode).append(' ')
+                  .append(formatLength(responseLength)).append(' ')
+                  .append(quote(referrer)).append(' ')
+                  .append(quote(userAgent));
+                String extra = formatExtra(extraData);
+                if (extra != null) sb.append(' ').append(extra);
+                return sb.toString();
+            }
+            public String format() {
+                return format(formatDatetime(timestamp));
+            }
+
+        }
+
         public static String format(RequestResponseData req) {
-            StringBuilder sb = new StringBuilder();
-            sb.append(formatAddress(req.getAddress())).append(' ')
-              .append(escape(req.getRFC1413Identity())).append(' ')
-              .append(escape(req.getAuthIdentity())).append(' ')
-              .append(formatDatetime(req.getTimestamp())).append(' ')
-              .append(quote(req.getMethod() + ' ' + req.getPath() + ' ' +
-                            req.getHTTPVersion())).append(' ')
-              .append(req.getStatusCode()).append(' ')
-              .append(formatLength(req.getResponseLength())).append(' ')
-              .append(quote(req.getReferrer())).append(' ')
-              .append(quote(req.getUserAgent()));
-            String extra = formatExtra(req.getExtraData());
-            if (extra != null) sb.append(' ').append(extra);
-            return sb.toString();
+            return new Entry(req).format();
         }
 
     }
@@ -0,0 +1,329 @@
+package net.instant.util;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import org.json.JSONException;
+import org.json.JSONString;
+
+/**
+ * The top level of a JSON object, with the values left unparsed.
+ * scan() validates the entire input, but only splits the outermost object
+ * into its members; the values are kept as slices of the input, which are
+ * only parsed when asked for, and which serialize back to their original
+ * text verbatim. This allows passing large values on without constructing
+ * (and re-serializing) an object tree for them.
+ * The scanner is stricter than org.json's parser (in particular, it
+ * adheres to RFC 8259); callers may want to fall back to the latter when
+ * scanning fails.
+ */
+public class JSONEnvelope {
+
+    /* Deeper nesting is rejected to avoid exhausting the stack. */
+    public static final int MAX_DEPTH = 512;
+
+    public static class Value implements JSONString {
+
+        private final String source;
+        private final int start;
+        private final int end;
+        private String text;
+        private Object parsed;
+
+        public Value(String source, int start, int end) {
+            this.source = source;
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * The length of the value's textual representation.
+         */
+        public int length() {
+            return end - start;
+        }
+
+        /**
+         * The value's textual representation, exactly as in the source.
+         */
+        public String getText() {
+            if (text == null) text = source.substring(start, end);
+            return text;
+        }
+
+        /**
+         * The value as parsed by org.json (and cached).
+         */
+        public Object getValue() throws JSONException {
+            if (parsed == null) parsed = Util.parseOneJSONValue(getText());
+            return parsed;
+        }
+
+        public String toJSONString() {
+            return getText();
+        }
+
+        public String toString() {
+            return getText();
+        }
+
+    }
+
+    private final String source;
+    private final Map<String, Value> members;
+
+    protected JSONEnvelope(String source, Map<String, Value> members) {
+        this.source = source;
+        this.members = Collections.unmodifiableMap(members);
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * The members of the object, in order of appearance.
+     */
+    public Map<String, Value> getMembers() {
+        return members;
+    }
+
+    public boolean has(String key) {
+        return members.containsKey(key);
+    }
+
+    /**
+     * The unparsed value associated with key, or null if there is none.
+     */
+    public Value getRaw(String key) {
+        return members.get(key);
+    }
+
+    /**
+     * The parsed value associated with key, or null if there is none.
+     */
+    public Object get(String key) throws JSONException {
+        Value v = members.get(key);
+        return (v == null) ? null : v.getValue();
+    }
+
+    /**
+     * Split the JSON object in text into its members.
+     * Throws a JSONException if text is not a single well-formed JSON
+     * object or if it contains duplicate keys.
+     */
+    public static JSONEnvelope scan(String text) throws JSONException {
+        Scanner s = new Scanner(text);
+        Map<String, Value> members = new LinkedHashMap<String, Value>();
+        s.skipSpace();
+        s.expect('{');
+        s.skipSpace();
+        if (s.peek() == '}') {
+            s.pos++;
+        } else {
+            for (;;) {
+                int keyStart = s.pos;
+                s.skipString();
+                String key = s.decodeKey(keyStart, s.pos);
+                s.skipSpace();
+                s.expect(':');
+                s.skipSpace();
+                int valueStart = s.pos;
+                s.skipValue(1);
+                if (members.put(key, new Value(text, valueStart, s.pos)) !=
+                        null)
+                    throw s.error("Duplicate key \"" + key + "\"");
+                s.skipSpace();
+                if (s.peek() == '}') {
+                    s.pos++;
+                    break;
+                }
+                s.expect(',');
+                s.skipSpace();
+            }
+        }
+        s.skipSpace();
+        if (s.pos != text.length())
+            throw s.error("Unexpected garbage after JSON value");
+        return new JSONEnvelope(text, members);
+    }
+
+    private static class Scanner {
+
+        private final String text;
+        private final int length;
+        private int pos;
+
+        public Scanner(String text) {
+            this.text = text;
+            this.length = text.length();
+        }
+
+        public JSONException error(String message) {
+            return new JSONException(message + " at character " + pos);
+        }
+
+        public int peek() {
+            return (pos < length) ? text.charAt(pos) : -1;
+        }
+
+        public void expect(char c) throws JSONException {
+            if (peek() != c) throw error("Expected '" + c + "'");
+            pos++;
+        }
+
+        public void skipSpace() {
+            while (pos < length) {
+                char c = text.charAt(pos);
+                if (c != ' ' && c != '\t' && c != '\n' && c != '\r') break;
+                pos++;
+            }
+        }
+
+        public void skipValue(int depth) throws JSONException {
+            if (depth > MAX_DEPTH) throw error("Nesting too deep");
+            switch (peek()) {
+                case '{':
+                    pos++;
+                    skipSpace();
+                    if (peek() == '}') {
+                        pos++;
+                        return;
+                    }
+                    // org.json rejects duplicate keys at any level, so
+                    // this does as well.
+                    Set<String> keys = new HashSet<String>();
+                    for (;;) {
+                        int keyStart = pos;
+                        skipString();
+                        String key = decodeKey(keyStart, pos);
+                        if (! keys.add(key))
+                            throw error("Duplicate key \"" + key + "\"");
+                        skipSpace();
+                        expect(':');
+                        skipSpace();
+                        skipValue(depth + 1);
+                        skipSpace();
+                        if (peek() == '}') {
+                            pos++;
+                            return;
+                        }
+                        expect(',');
+                        skipSpace();
+                    }
+                case '[':
+                    pos++;
+                    skipSpace();
+                    if (peek() == ']') {
+                        pos++;
+                        return;
+                    }
+                    for (;;) {
+                        skipValue(depth + 1);
+                        skipSpace();
+                        if (peek() == ']') {
+                            pos++;
+                            return;
+                        }
+                        expect(',');
+                        skipSpace();
+                    }
+                case '"':
+                    skipString();
+                    return;
+                case 't':
+                    skipLiteral("true");
+                    return;
+                case 'f':
+                    skipLiteral("false");
+                    return;
+                case 'n':
+                    skipLiteral("null");
+                    return;
+                default:
+                    skipNumber();
+                    return;
+            }
+        }
+
+        public void skipString() throws JSONException {
+            expect('"');
+            while (pos < length) {
+                char c = text.charAt(pos++);
+                if (c == '"') {
+                    return;
+                } else if (c == '\\') {
+                    switch (peek()) {
+                        case '"': case '\\': case '/': case 'b': case 'f':
+                        case 'n': case 'r': case 't':
+                            pos++;
+                            break;
+                        case 'u':
+                            pos++;
+                            for (int i = 0; i < 4; i++) {
+                                if (! isHexDigit(peek()))
+                                    throw error("Invalid escape sequence");
+                                pos++;
+                            }
+                            break;
+                        default:
+                            throw error("Invalid escape sequence");
+                    }
+                } else if (c < ' ') {
+                    pos--;
+                    throw error("Unescaped control character in string");
+                }
+            }
+            throw error("Unterminated string");
+        }
+
+        public String decodeKey(int start, int end) throws JSONException {
+            int bs = text.indexOf('\\', start);
+            if (bs == -1 || bs >= end)
+                return text.substring(start + 1, end - 1);
+            return (String) Util.parseOneJSONValue(text.substring(start,
+                                                                  end));
+        }
+
+        private void skipLiteral(String lit) throws JSONException {
+            if (! text.startsWith(lit, pos))
+                throw error("Invalid literal");
+            pos += lit.length();
+        }
+
+        private void skipNumber() throws JSONException {
+            if (peek() == '-') pos++;
+            if (peek() == '0') {
+                pos++;
+            } else if (isDigit(peek())) {
+                while (isDigit(peek())) pos++;
+            } else {
+                throw error("Invalid value");
+            }
+            if (peek() == '.') {
+                pos++;
+                if (! isDigit(peek())) throw error("Invalid number");
+                while (isDigit(peek())) pos++;
+            }
+            if (peek() == 'e' || peek() == 'E') {
+                pos++;
+                if (peek() == '+' || peek() == '-') pos++;
+                if (! isDigit(peek())) throw error("Invalid number");
+                while (isDigit(peek())) pos++;
+            }
+        }
+
+        private static boolean isDigit(int c) {
+            return ('0' <= c && c <= '9');
+        }
+
+        private static boolean isHexDigit(int c) {
+            return (isDigit(c) || 'a' <= c && c <= 'f' ||
+                    'A' <= c && c <= 'F');
+        }
+
+    }
+
+}
@@ -0,0 +1,102 @@
+package net.instant.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations for estimating percentiles.
+ * Bucket i counts durations of less than 2**i microseconds (but not less
+ * than those of bucket i - 1); percentiles are reported as the upper
+ * bound of the bucket they fall into, i.e. they are overestimated by (at
+ * most) a factor of two.
+ */
+public class LatencyHistogram {
+
+    /* The last bucket covers everything from about 4.5 minutes onwards. */
+    public static final int BUCKETS = 30;
+
+    private final AtomicLongArray counts;
+    private final AtomicLong total;
+    private final AtomicLong max;
+
+    public LatencyHistogram() {
+        this.counts = new AtomicLongArray(BUCKETS);
+        this.total = new AtomicLong();
+        this.max = new AtomicLong();
+    }
+
+    /**
+     * Record a duration (in nanoseconds).
+     */
+    public void record(long nanos) {
+        long micros = Math.max(nanos / 1000, 0);
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        counts.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+        total.addAndGet(nanos);
+        for (;;) {
+            long m = max.get();
+            if (nanos <= m || max.compareAndSet(m, nanos)) break;
+        }
+    }
+
+    /**
+     * The amount of durations recorded.
+     */
+    public long getCount() {
+        long ret = 0;
+        for (int i = 0; i < BUCKETS; i++) ret += counts.get(i);
+        return ret;
+    }
+
+    /**
+     * The mean duration (in milliseconds), or 0 if there is none.
+     */
+    public double getMean() {
+        long count = getCount();
+        return (count == 0) ? 0 : total.get() / 1e6 / count;
+    }
+
+    /**
+     * The longest duration (in milliseconds) recorded.
+     */
+    public double getMax() {
+        return max.get() / 1e6;
+    }
+
+    /**
+     * An upper bound of the duration (in milliseconds) not exceeded by
+     * the given fraction (between 0 and 1) of the recorded durations, or
+     * 0 if there is none.
+     */
+    public double getPercentile(double fraction) {
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        if (count == 0) return 0;
+        long rank = (long) Math.ceil(fraction * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return (1L << i) / 1e3;
+        }
+        return getMax();
+    }
+
+    public void clear() {
+        for (int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+        total.set(0);
+        max.set(0);
+    }
+
+    public String toString() {
+        return String.format("%s@%x[%d samples, mean %.3f ms, " +
+            "p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, max %.3f ms]",
+            getClass().getName(), hashCode(), getCount(), getMean(),
+            getPercentile(0.5), getPercentile(0.9), getPercentile(0.99),
+            getMax());
+    }
+
+}
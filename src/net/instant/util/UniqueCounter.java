@@ -1,6 +1,7 @@
 package net.instant.util;
 
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 import net.instant.api.Counter;
 
 public class UniqueCounter implements Counter {
@@ -10,8 +11,14 @@ public class UniqueCounter implements Counter {
 
     public static final UniqueCounter INSTANCE = new UniqueCounter();
 
-    private long lastSeconds;
-    private int sequence;
+    private static final ThreadLocal<char[]> HEX_BUFFER =
+        new ThreadLocal<char[]>() {
+            protected char[] initialValue() {
+                return new char[16];
+            }
+        };
+
+    private final AtomicLong last;
     private final long nodeID;
     private final UUID era;
 
@@ -24,42 +31,37 @@ public class UniqueCounter implements Counter {
                  (long) rnd[3] << 16 & 0x000000FF0000L |
                  (long) rnd[4] <<  8 & 0x00000000FF00L |
                  (long) rnd[5] <<  0 & 0x0000000000FFL;
+        last = new AtomicLong();
         era = getUUID();
     }
 
     /**
      * Output format: a long, with the upper 54 bits containing a
      * millisecond-precise UNIX timestamp, and the remaining bits
-     * containing a sequence number that is reset every second
-     * (and not every millisecond to account for leap seconds).
+     * containing a sequence number distinguishing values generated
+     * within the same millisecond.
+     * Values are strictly increasing (even if the clock goes backwards);
+     * if more than 1024 values are requested within a millisecond, the
+     * timestamp runs ahead of the clock until the latter catches up.
+     * This method does not block; concurrent callers only retry.
      * Expected wreckage time: Around Y280K.
      */
-    public synchronized long get() {
-        long curTime = System.currentTimeMillis();
-        long curSeconds = curTime / 1000;
-        if (curSeconds <= lastSeconds) {
-            sequence++;
-        } else if (sequence < 1024000) {
-            sequence = 0;
-        } else {
-            // Avoid ussing the same ID twice.
-            sequence -= 1024000 - 1;
+    public long get() {
+        long now = System.currentTimeMillis() << 10;
+        for (;;) {
+            long prev = last.get();
+            long next = Math.max(prev + 1, now);
+            if (last.compareAndSet(prev, next)) return next;
         }
-        lastSeconds = curSeconds;
-        return (curTime << 10) + sequence;
     }
 
+    /**
+     * Format v as 16 (uppercase) hexadecimal digits.
+     */
     public String getString(long v) {
-        byte[] temp = new byte[8];
-        temp[0] = (byte) (v >> 56);
-        temp[1] = (byte) (v >> 48);
-        temp[2] = (byte) (v >> 40);
-        temp[3] = (byte) (v >> 32);
-        temp[4] = (byte) (v >> 24);
-        temp[5] = (byte) (v >> 16);
-        temp[6] = (byte) (v >>  8);
-        temp[7] = (byte) (v >>  0);
-        return Encodings.toHex(temp);
+        char[] buf = HEX_BUFFER.get();
+        Encodings.toHex(v, buf, 0);
+        return new String(buf);
     }
     public String getString() {
         return getString(get());
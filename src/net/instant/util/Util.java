@@ -199,4 +199,13 @@ public final class Util {
         return Utilities.isTrue(input);
     }
 
+    public static long parseLong(String input, long def) {
+        if (input == null) return def;
+        try {
+            return Long.parseLong(input);
+        } catch (NumberFormatException exc) {
+            return def;
+        }
+    }
+
 }
@@ -1,38 +1,263 @@
 package net.instant.util.fileprod;
 
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import net.instant.util.Util;
+import net.instant.util.config.Configuration;
 
+/**
+ * A size-bounded cache of FileCell-s.
+ * Lookups do not take any locks. The total size of the cells held is kept
+ * below a configurable limit; when a new cell would exceed it, the cache
+ * samples a few of its entries and picks those that were requested least
+ * often (and, among equally popular ones, least recently) for eviction.
+ * The new cell is only admitted if it was requested more often than each
+ * of the entries it would displace (TinyLFU); the request frequencies are
+ * estimated by a small counting sketch that is periodically aged so that
+ * formerly popular entries can be displaced eventually.
+ */
 public class FileCache implements Producer {
 
-    private final Map<String, FileCell> data;
+    private static final String K_MAX_SIZE = "instant.http.cache.maxSize";
 
+    public static final long DEFAULT_MAX_SIZE = 64 * 1024 * 1024;
+
+    /* How many entries are examined to choose an eviction victim. */
+    public static final int SAMPLE_SIZE = 8;
+
+    private static class Entry {
+
+        private final FileCell cell;
+        private final long size;
+        private volatile long lastAccess;
+        // Index in the entry list; guarded by the cache's monitor.
+        private int index;
+
+        public Entry(FileCell cell) {
+            this.cell = cell;
+            this.size = weigh(cell);
+            this.lastAccess = System.nanoTime();
+        }
+
+        private static long weigh(FileCell cell) {
+            long ret = Math.max(cell.getSize(), 0);
+            for (FileCell v : cell.getVariants().values())
+                ret += Math.max(v.getSize(), 0);
+            return ret;
+        }
+
+    }
+
+    /* A count-min sketch of DEPTH rows of saturating counters. Updates are
+     * not atomic as a whole (and may be lost under contention), which only
+     * affects the accuracy of the estimates. */
+    private static class FrequencySketch {
+
+        private static final int DEPTH = 4;
+        private static final int WIDTH = 4096;
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = { 0x2F0F5A27, 0x6A09E667,
+                                             0x3C6EF372, 0x510E527F };
+
+        /* After this many increments, all counters are halved. */
+        private static final int RESET_INTERVAL = 10 * WIDTH;
+
+        private final AtomicIntegerArray counters;
+        private final AtomicInteger additions;
+
+        public FrequencySketch() {
+            counters = new AtomicIntegerArray(DEPTH * WIDTH);
+            additions = new AtomicInteger();
+        }
+
+        public int frequency(String key) {
+            int hash = key.hashCode(), ret = MAX_COUNT;
+            for (int i = 0; i < DEPTH; i++)
+                ret = Math.min(ret, counters.get(index(hash, i)));
+            return ret;
+        }
+
+        public void increment(String key) {
+            int hash = key.hashCode();
+            for (int i = 0; i < DEPTH; i++) {
+                int idx = index(hash, i), v = counters.get(idx);
+                if (v < MAX_COUNT) counters.compareAndSet(idx, v, v + 1);
+            }
+            if (additions.incrementAndGet() == RESET_INTERVAL) reset();
+        }
+
+        private void reset() {
+            for (int i = 0; i < counters.length(); i++) {
+                int v;
+                do {
+                    v = counters.get(i);
+                } while (! counters.compareAndSet(i, v, v >> 1));
+            }
+            additions.set(0);
+        }
+
+        private static int index(int hash, int row) {
+            int h = (hash + SEEDS[row]) * 0x9E3779B9;
+            h ^= h >>> 16;
+            return row * WIDTH + (h & (WIDTH - 1));
+        }
+
+    }
+
+    private final Map<String, Entry> data;
+    // Guarded by the instance's monitor (as are all modifications).
+    private final List<Entry> entries;
+    private final FrequencySketch sketch;
+    private final Random random;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final AtomicLong evictions;
+    private final AtomicLong rejections;
+    private volatile long maxSize;
+    private volatile long size;
+
+    public FileCache(long maxSize) {
+        this.data = new ConcurrentHashMap<String, Entry>();
+        this.entries = new ArrayList<Entry>();
+        this.sketch = new FrequencySketch();
+        this.random = new Random();
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+        this.evictions = new AtomicLong();
+        this.rejections = new AtomicLong();
+        this.maxSize = maxSize;
+    }
     public FileCache() {
-        data = new HashMap<String, FileCell>();
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * The total size (in bytes) of the cells this cache may hold.
+     * Negative values disable the limit. Lowering the limit does not evict
+     * any entries by itself.
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+    public void setMaxSize(long s) {
+        maxSize = s;
+    }
+
+    /**
+     * The total size (in bytes) of the cells held (including their
+     * variants).
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * The amount of cells held.
+     */
+    public int getCount() {
+        return data.size();
+    }
+
+    /**
+     * The amount of lookups that found a valid cell.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * The amount of lookups that did not find a (valid) cell.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * The amount of cells removed to make room for others.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * The amount of cells not admitted into the cache (because they were
+     * too large or less popular than the ones they would have displaced).
+     */
+    public long getRejections() {
+        return rejections.get();
     }
 
-    public synchronized void add(FileCell cell) {
-        data.put(cell.getName(), cell);
+    /**
+     * Try to add cell to the cache, evicting other cells if necessary.
+     * Returns whether the cell was admitted.
+     */
+    public synchronized boolean add(FileCell cell) {
+        Entry ent = new Entry(cell);
+        long limit = maxSize;
+        Entry old = data.get(cell.getName());
+        long available = limit - size + ((old == null) ? 0 : old.size);
+        if (limit >= 0 && ent.size > available) {
+            List<Entry> victims = null;
+            if (ent.size <= limit)
+                victims = chooseVictims(ent, old, ent.size - available);
+            if (victims == null) {
+                rejections.incrementAndGet();
+                return false;
+            }
+            for (Entry v : victims) {
+                removeEntry(v);
+                evictions.incrementAndGet();
+            }
+        }
+        if (old != null) removeEntry(old);
+        ent.index = entries.size();
+        entries.add(ent);
+        data.put(cell.getName(), ent);
+        size += ent.size;
+        return true;
     }
     public synchronized void remove(FileCell cell) {
-        data.remove(cell.getName());
+        Entry ent = data.get(cell.getName());
+        if (ent != null) removeEntry(ent);
     }
 
-    public synchronized FileCell getEx(String name) {
-        return data.get(name);
+    /**
+     * Look up the cell called name without checking its validity (or
+     * counting the lookup).
+     */
+    public FileCell getEx(String name) {
+        Entry ent = data.get(name);
+        return (ent == null) ? null : ent.cell;
     }
-    public synchronized FileCell get(String name) {
-        FileCell cell = getEx(name);
-        if (cell != null && ! cell.isValid()) {
-            remove(cell);
+    public FileCell get(String name) {
+        sketch.increment(name);
+        Entry ent = data.get(name);
+        if (ent != null && ! ent.cell.isValid()) {
+            synchronized (this) {
+                if (data.get(name) == ent) removeEntry(ent);
+            }
+            ent = null;
+        }
+        if (ent == null) {
+            misses.incrementAndGet();
             return null;
         }
-        return cell;
+        ent.lastAccess = System.nanoTime();
+        hits.incrementAndGet();
+        return ent.cell;
     }
 
     public synchronized void clear() {
         data.clear();
+        entries.clear();
+        size = 0;
     }
 
     public ProducerJob produce(String name) {
@@ -46,11 +271,79 @@ public class FileCache implements Producer {
     }
 
     public synchronized void gc() {
-        Iterator<FileCell> it = data.values().iterator();
-        while (it.hasNext()) {
-            FileCell c = it.next();
-            if (! c.isValid()) it.remove();
+        // Removing an entry moves the last one into its place, which has
+        // been examined already.
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            Entry ent = entries.get(i);
+            if (! ent.cell.isValid()) removeEntry(ent);
+        }
+    }
+
+    public String toString() {
+        return String.format("%s@%x[%d cells, %d/%d bytes, %d hits, " +
+            "%d misses, %d evictions, %d rejections]",
+            getClass().getName(), hashCode(), getCount(), getSize(),
+            getMaxSize(), getHits(), getMisses(), getEvictions(),
+            getRejections());
+    }
+
+    /* Returns null if the candidate should not be admitted. The caller must
+     * hold the instance's monitor. */
+    private List<Entry> chooseVictims(Entry candidate, Entry replaced,
+                                      long needed) {
+        int freq = sketch.frequency(candidate.cell.getName());
+        Map<Entry, Boolean> chosen = new IdentityHashMap<Entry, Boolean>();
+        if (replaced != null) chosen.put(replaced, true);
+        List<Entry> ret = new ArrayList<Entry>();
+        long freed = 0;
+        while (freed < needed) {
+            Entry victim = null;
+            int victimFreq = 0;
+            for (int i = 0; i < SAMPLE_SIZE; i++) {
+                Entry e = sampleEntry(chosen);
+                if (e == null) break;
+                int f = sketch.frequency(e.cell.getName());
+                if (victim == null || f < victimFreq || f == victimFreq &&
+                        e.lastAccess < victim.lastAccess) {
+                    victim = e;
+                    victimFreq = f;
+                }
+            }
+            if (victim == null || victimFreq >= freq) return null;
+            chosen.put(victim, true);
+            ret.add(victim);
+            freed += victim.size;
         }
+        return ret;
+    }
+
+    private Entry sampleEntry(Map<Entry, Boolean> exclude) {
+        int n = entries.size();
+        if (exclude.size() >= n) return null;
+        Entry ret = entries.get(random.nextInt(n));
+        if (! exclude.containsKey(ret)) return ret;
+        // Rather than retrying (possibly for a long time), scan for the
+        // next entry that is not excluded.
+        for (int i = (ret.index + 1) % n; ; i = (i + 1) % n) {
+            ret = entries.get(i);
+            if (! exclude.containsKey(ret)) return ret;
+        }
+    }
+
+    /* The caller must hold the instance's monitor. */
+    private void removeEntry(Entry ent) {
+        data.remove(ent.cell.getName());
+        Entry last = entries.remove(entries.size() - 1);
+        if (last != ent) {
+            last.index = ent.index;
+            entries.set(ent.index, last);
+        }
+        size -= ent.size;
+    }
+
+    public static FileCache fromConfig(Configuration cfg) {
+        return new FileCache(Util.parseLong(cfg.get(K_MAX_SIZE),
+                                            DEFAULT_MAX_SIZE));
     }
 
 }
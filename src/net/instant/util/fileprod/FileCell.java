@@ -1,25 +1,55 @@
 package net.instant.util.fileprod;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
 import net.instant.util.Encodings;
 import net.instant.util.Util;
 
 public class FileCell {
 
+    /* Contents smaller than this are not compressed. */
+    public static final int MIN_COMPRESS_SIZE = 256;
+
+    /* Compressed variants are only kept if they are at most this fraction
+     * of the original size. */
+    public static final double MAX_COMPRESS_RATIO = 0.9;
+
+    /* GZIPOutputStream does not allow choosing the compression level
+     * directly. */
+    private static class BestGZIPOutputStream extends GZIPOutputStream {
+
+        public BestGZIPOutputStream(OutputStream out) throws IOException {
+            super(out);
+            def.setLevel(Deflater.BEST_COMPRESSION);
+        }
+
+    }
+
     private final String name;
     private final ByteBuffer content;
     private final long created;
     private String etag;
+    private String fingerprint;
+    private volatile Map<String, FileCell> variants;
 
     public FileCell(String name, ByteBuffer content, long created) {
         this.name = name;
         this.content = content;
         this.created = created;
         this.etag = null;
+        this.fingerprint = null;
+        this.variants = Collections.emptyMap();
     }
     public FileCell(String name, InputStream input, long created)
             throws IOException {
@@ -39,6 +69,31 @@ public class FileCell {
         return created;
     }
 
+    /**
+     * Open a channel reading the content from the file backing it, or
+     * return null if there is none.
+     * Byte i of getData() is at position i of the channel. This allows
+     * transports to pass the content on without reading it themselves
+     * (see FileChannel.transferTo()); the caller is responsible for closing
+     * the channel. Transports that have to process the content themselves
+     * should read it from the channel as well, since getData() might be
+     * a mapping of the file, and touching that after the file has been
+     * truncated crashes the touching thread.
+     */
+    public FileChannel openChannel() throws IOException {
+        return null;
+    }
+
+    /**
+     * Write the content (which must not be null) to out.
+     * Digests and variants are computed from this rather than from
+     * getData(); cells whose content is mapped from a file override it to
+     * read the file instead (see openChannel()).
+     */
+    protected void writeContent(OutputStream out) throws IOException {
+        Util.writeOutputStream(out, getData());
+    }
+
     public String getETag() {
         if (etag == null) {
             MessageDigest d;
@@ -53,19 +108,98 @@ public class FileCell {
                 d.update((byte) 0);
             } else {
                 d.update((byte) 1);
-                d.update(getData());
+                // If this fails, the file has changed, and the cell is
+                // about to be invalidated.
+                if (! digestContent(d)) return null;
             }
             etag = Encodings.toHex(d.digest());
         }
         return etag;
     }
 
+    /**
+     * A short hash of the content (only), suitable for embedding into
+     * names of the file (see Fingerprinter), or null if there is no
+     * content.
+     */
+    public String getFingerprint() {
+        if (fingerprint == null && content != null) {
+            MessageDigest d;
+            try {
+                d = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException exc) {
+                return null;
+            }
+            if (! digestContent(d)) return null;
+            fingerprint = Encodings.toHex(d.digest()).substring(0,
+                Fingerprinter.FINGERPRINT_LENGTH).toLowerCase();
+        }
+        return fingerprint;
+    }
+
     public int getSize() {
         return (content != null) ? content.limit() : -1;
     }
 
+    /**
+     * Alternative representations of the content, keyed by the HTTP
+     * content-coding (such as "gzip") they are encoded with.
+     * Each variant is a FileCell with the same name and creation time as
+     * this one (and, in particular, an ETag of its own).
+     */
+    public Map<String, FileCell> getVariants() {
+        return variants;
+    }
+    public FileCell getVariant(String encoding) {
+        return variants.get(encoding);
+    }
+    public synchronized void addVariant(String encoding, FileCell cell) {
+        Map<String, FileCell> nv = new HashMap<String, FileCell>(variants);
+        nv.put(encoding, cell);
+        variants = Collections.unmodifiableMap(nv);
+    }
+
+    /**
+     * Compute those variants of the content that are worth having.
+     * Currently, this creates a gzip-compressed variant unless there is
+     * one already or compression does not save enough space. This is
+     * expected to be called once (by FileProducer) before the cell is
+     * cached.
+     */
+    public void encodeVariants() throws IOException {
+        if (content == null || getSize() < MIN_COMPRESS_SIZE ||
+                getVariant("gzip") != null)
+            return;
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        OutputStream gz = new BestGZIPOutputStream(buf);
+        try {
+            writeContent(gz);
+        } finally {
+            gz.close();
+        }
+        if (buf.size() > getSize() * MAX_COMPRESS_RATIO) return;
+        addVariant("gzip", new FileCell(name,
+            ByteBuffer.wrap(buf.toByteArray()), created));
+    }
+
     public boolean isValid() {
         return true;
     }
 
+    private boolean digestContent(final MessageDigest d) {
+        try {
+            writeContent(new OutputStream() {
+                public void write(int b) {
+                    d.update((byte) b);
+                }
+                public void write(byte[] b, int off, int len) {
+                    d.update(b, off, len);
+                }
+            });
+            return true;
+        } catch (IOException exc) {
+            return false;
+        }
+    }
+
 }
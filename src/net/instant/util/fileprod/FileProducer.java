@@ -1,37 +1,114 @@
 package net.instant.util.fileprod;
 
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import net.instant.util.LatencyHistogram;
+import net.instant.util.Util;
+import net.instant.util.config.Configuration;
 
+/**
+ * Produces files in a background thread pool and caches the results.
+ * The pool has a bounded amount of threads and a bounded queue of jobs
+ * waiting for one; when both are exhausted, further files that are not
+ * cached already are rejected (see get()) instead of piling up. The time
+ * from a job's submission to its completion is recorded in a histogram.
+ */
 public class FileProducer {
 
     private static final Logger LOGGER = Logger.getLogger("FileProducer");
 
+    private static final String K_POOL_SIZE = "instant.http.producer.threads";
+    private static final String K_QUEUE_SIZE =
+        "instant.http.producer.queueSize";
+
     public static int GC_INTERVAL = 3600000;
 
+    public static final int DEFAULT_POOL_SIZE = 16;
+    public static final int DEFAULT_QUEUE_SIZE = 256;
+
+    /* How long (in milliseconds) idle pool threads are kept around. */
+    public static final long THREAD_KEEPALIVE = 60000;
+
     private final Map<String, ProducerJob> pending;
-    private final Executor pool;
+    private final ThreadPoolExecutor pool;
+    private final LatencyHistogram latency;
+    private final AtomicLong rejections;
     private ListProducer producer;
     private FileCache cache;
+    private NegativeCache negativeCache;
+    private Fingerprinter fingerprinter;
 
-    public FileProducer(ListProducer producer, FileCache cache) {
+    public FileProducer(ListProducer producer, FileCache cache,
+                        NegativeCache negativeCache, int poolSize,
+                        int queueSize) {
         this.pending = new HashMap<String, ProducerJob>();
-        this.pool = Executors.newCachedThreadPool();
+        this.pool = new ThreadPoolExecutor(poolSize, poolSize,
+            THREAD_KEEPALIVE, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(queueSize));
+        this.pool.allowCoreThreadTimeOut(true);
+        this.latency = new LatencyHistogram();
+        this.rejections = new AtomicLong();
         this.producer = producer;
         this.cache = cache;
+        this.negativeCache = negativeCache;
+    }
+    public FileProducer(ListProducer producer, FileCache cache,
+                        NegativeCache negativeCache) {
+        this(producer, cache, negativeCache, DEFAULT_POOL_SIZE,
+             DEFAULT_QUEUE_SIZE);
+    }
+    public FileProducer(ListProducer producer, FileCache cache) {
+        this(producer, cache, new NegativeCache());
     }
     public FileProducer() {
         this(new ListProducer(), new FileCache());
     }
 
-    public Executor getPool() {
+    public ThreadPoolExecutor getPool() {
         return pool;
     }
 
+    /**
+     * The amount of jobs waiting for a thread.
+     */
+    public int getQueueDepth() {
+        return pool.getQueue().size();
+    }
+
+    /**
+     * The amount of jobs being run.
+     */
+    public int getActiveJobs() {
+        return pool.getActiveCount();
+    }
+
+    /**
+     * The amount of files not produced because the pool was saturated.
+     */
+    public long getRejections() {
+        return rejections.get();
+    }
+
+    /**
+     * The times (from submission to completion) jobs took.
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
     public ListProducer getProducer() {
         return producer;
     }
@@ -46,6 +123,29 @@ public class FileProducer {
         cache = c;
     }
 
+    /**
+     * The names that recently could not be produced.
+     * May be null to disable remembering them.
+     */
+    public NegativeCache getNegativeCache() {
+        return negativeCache;
+    }
+    public void setNegativeCache(NegativeCache c) {
+        negativeCache = c;
+    }
+
+    /**
+     * Records fingerprinted names of produced files and rewrites references
+     * to them.
+     * May be null to disable fingerprinting.
+     */
+    public Fingerprinter getFingerprinter() {
+        return fingerprinter;
+    }
+    public void setFingerprinter(Fingerprinter f) {
+        fingerprinter = f;
+    }
+
     protected synchronized ProducerJob produce(String name,
                                                ProducerJob.Callback cb) {
         ProducerJob job = pending.get(name);
@@ -54,22 +154,64 @@ public class FileProducer {
             return job;
         }
         if (producer == null) return null;
+        NegativeCache nc = negativeCache;
+        if (nc != null) {
+            nc.checkVersion(producer.getVersion());
+            if (nc.contains(name)) return null;
+        }
         job = producer.produce(name);
-        if (job == null) return null;
+        if (job == null) {
+            if (nc != null) nc.add(name);
+            return null;
+        }
+        final Fingerprinter fp = fingerprinter;
+        if (fp != null) job = fp.wrap(job);
+        final long startTime = System.nanoTime();
         job.callback(new ProducerJob.Callback() {
             public void fileProduced(String name, FileCell f) {
+                // This runs in the pool, before any other callbacks.
+                if (f != null) encodeVariants(f);
+                if (f != null && fp != null) fp.update(f);
                 synchronized (FileProducer.this) {
                     if (f != null) cache.add(f);
                     pending.remove(name);
                 }
+                long elapsed = System.nanoTime() - startTime;
+                latency.record(elapsed);
+                if (LOGGER.isLoggable(Level.FINE))
+                    LOGGER.fine(String.format("Produced %s in %.3f ms",
+                                              name, elapsed / 1e6));
             }
         });
         if (cb != null) job.callback(cb);
+        try {
+            pool.execute(job);
+        } catch (RejectedExecutionException exc) {
+            rejections.incrementAndGet();
+            throw exc;
+        }
         pending.put(name, job);
-        pool.execute(job);
         return job;
     }
 
+    protected void encodeVariants(FileCell f) {
+        try {
+            f.encodeVariants();
+        } catch (IOException exc) {
+            LOGGER.log(Level.WARNING, "Could not encode variants of " +
+                f.getName(), exc);
+        }
+    }
+
+    /**
+     * Retrieve the file called name.
+     * If the file is cached, it is returned (and passed to cb, if that is
+     * not null); otherwise, it is produced in the background, null is
+     * returned, and cb is invoked (in the pool) when the file is done.
+     * Throws a FileNotFoundException if the file cannot be produced, and
+     * a RejectedExecutionException if it would have to be produced but
+     * the pool is saturated.
+     */
     public FileCell get(String name, ProducerJob.Callback cb)
             throws FileNotFoundException {
         FileCell res;
@@ -89,6 +231,64 @@ public class FileProducer {
         return get(name, null);
     }
 
+    /**
+     * Produce all of names that are not cached already (in parallel) and
+     * wait until they are done.
+     * Names that cannot be produced are skipped. This does not count as
+     * requesting the files, so cells that do not fit into the cache
+     * without displacing others are not retained.
+     */
+    public void preload(Collection<String> names)
+            throws InterruptedException {
+        long startTime = System.nanoTime();
+        final CountDownLatch done = new CountDownLatch(names.size());
+        final AtomicInteger count = new AtomicInteger();
+        final AtomicLong bytes = new AtomicLong();
+        // Leave the queue to actual requests.
+        final Semaphore slots = new Semaphore(pool.getMaximumPoolSize());
+        ProducerJob.Callback cb = new ProducerJob.Callback() {
+            public void fileProduced(String name, FileCell f) {
+                if (f != null) {
+                    count.incrementAndGet();
+                    bytes.addAndGet(Math.max(f.getSize(), 0));
+                }
+                slots.release();
+                done.countDown();
+            }
+        };
+        for (String n : names) {
+            slots.acquire();
+            boolean submitted = false;
+            try {
+                synchronized (this) {
+                    submitted = (cache.getEx(n) == null &&
+                                 produce(n, cb) != null);
+                }
+            } catch (RejectedExecutionException exc) {
+                LOGGER.warning("Could not preload " + n + ": Too many " +
+                    "files being produced");
+            }
+            if (! submitted) {
+                slots.release();
+                done.countDown();
+            }
+        }
+        done.await();
+        LOGGER.info(String.format("Preloaded %d files (%d bytes) in %d ms " +
+            "(%d bytes cached in total)", count.get(), bytes.get(),
+            (System.nanoTime() - startTime) / 1000000, cache.getSize()));
+    }
+
+    public String toString() {
+        return String.format("%s@%x[%d/%d threads active, %d/%d jobs " +
+            "queued, %d rejections, latency p50 %.3f ms, p90 %.3f ms, " +
+            "p99 %.3f ms]", getClass().getName(), hashCode(),
+            getActiveJobs(), pool.getMaximumPoolSize(), getQueueDepth(),
+            getQueueDepth() + pool.getQueue().remainingCapacity(),
+            getRejections(), latency.getPercentile(0.5),
+            latency.getPercentile(0.9), latency.getPercentile(0.99));
+    }
+
     public Runnable getGCTask() {
         return new Runnable() {
             public void run() {
@@ -98,4 +298,16 @@ public class FileProducer {
         };
     }
 
+    public static FileProducer fromConfig(Configuration cfg,
+                                          ListProducer producer,
+                                          FileCache cache,
+                                          NegativeCache negativeCache) {
+        long poolSize = Util.parseLong(cfg.get(K_POOL_SIZE),
+                                       DEFAULT_POOL_SIZE);
+        long queueSize = Util.parseLong(cfg.get(K_QUEUE_SIZE),
+                                        DEFAULT_QUEUE_SIZE);
+        return new FileProducer(producer, cache, negativeCache,
+            (int) Math.max(poolSize, 1), (int) Math.max(queueSize, 1));
+    }
+
 }
@@ -0,0 +1,167 @@
+package net.instant.util.fileprod;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tracks changes to directories using a WatchService.
+ * Every watched directory has a version, which changes whenever anything
+ * inside the directory (might have) changed; FileCell-s can remember the
+ * version they have last been validated at and skip re-validating
+ * themselves (and accessing the filesystem) while it stays the same. If
+ * events are lost (because too many of them happened at once), the
+ * versions of all directories change, so that every cell is re-validated
+ * the next time it is used.
+ * Directories that are not (or no longer) watched (e.g. because they have
+ * been deleted, or because the platform does not support watching them)
+ * have no version; cells residing in them must always validate
+ * themselves.
+ */
+public class FileWatcher {
+
+    private static final Logger LOGGER = Logger.getLogger("FileWatcher");
+
+    /* The versions of different registrations of the same directory are
+     * kept apart by starting them this far from each other. */
+    private static final long REGISTRATION_SPACING = 1L << 40;
+
+    private final ConcurrentMap<Path, AtomicLong> dirs;
+    private final List<Runnable> listeners;
+    private final AtomicLong globalVersion;
+    private long registrations;
+    private WatchService service;
+    private volatile boolean closed;
+
+    public FileWatcher() {
+        this.dirs = new ConcurrentHashMap<Path, AtomicLong>();
+        this.listeners = new CopyOnWriteArrayList<Runnable>();
+        this.globalVersion = new AtomicLong();
+    }
+
+    /**
+     * The version of dir, or -1 if it is not being watched.
+     */
+    public long getVersion(Path dir) {
+        AtomicLong v = dirs.get(dir);
+        return (v == null) ? -1 : globalVersion.get() + v.get();
+    }
+
+    /**
+     * Register a callback to be run (in the watcher's thread) whenever
+     * changes have been observed.
+     */
+    public void addListener(Runnable r) {
+        listeners.add(r);
+    }
+    public void removeListener(Runnable r) {
+        listeners.remove(r);
+    }
+
+    /**
+     * Start watching dir (unless that happens already).
+     * Returns the (absolute and normalized) path whose version is to be
+     * queried, or null if the directory cannot be watched.
+     */
+    public Path register(File dir) {
+        Path path = dir.toPath().toAbsolutePath().normalize();
+        if (dirs.containsKey(path)) return path;
+        synchronized (this) {
+            if (closed) return null;
+            if (dirs.containsKey(path)) return path;
+            try {
+                if (service == null) start();
+                path.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                              StandardWatchEventKinds.ENTRY_DELETE,
+                              StandardWatchEventKinds.ENTRY_MODIFY);
+            } catch (IOException exc) {
+                LOGGER.log(Level.WARNING, "Could not watch " + path, exc);
+                return null;
+            }
+            // Changes that happen before the entry is created are noticed
+            // by the validation cells perform when they first see one of
+            // its versions.
+            dirs.put(path, new AtomicLong(++registrations *
+                                          REGISTRATION_SPACING));
+        }
+        return path;
+    }
+
+    public synchronized void close() {
+        closed = true;
+        dirs.clear();
+        if (service == null) return;
+        try {
+            service.close();
+        } catch (IOException exc) {
+            LOGGER.log(Level.WARNING, "Could not close watch service", exc);
+        }
+    }
+
+    /* The caller must hold the instance's monitor. */
+    private void start() throws IOException {
+        service = FileSystems.getDefault().newWatchService();
+        Thread thread = new Thread("File watcher") {
+            public void run() {
+                runWatcher();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void runWatcher() {
+        for (;;) {
+            WatchKey key;
+            try {
+                key = service.take();
+            } catch (InterruptedException exc) {
+                break;
+            } catch (ClosedWatchServiceException exc) {
+                break;
+            }
+            Path dir = (Path) key.watchable();
+            for (WatchEvent<?> evt : key.pollEvents()) {
+                if (evt.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    LOGGER.info("Lost file change events; re-validating " +
+                        "all files");
+                    globalVersion.incrementAndGet();
+                }
+            }
+            AtomicLong v = dirs.get(dir);
+            if (v != null) v.incrementAndGet();
+            if (! key.reset()) {
+                // The directory is gone (or inaccessible).
+                dirs.remove(dir);
+            }
+            for (Runnable r : listeners) {
+                try {
+                    r.run();
+                } catch (RuntimeException exc) {
+                    LOGGER.log(Level.WARNING, "Exception in file watcher " +
+                        "listener", exc);
+                }
+            }
+        }
+        // Cells must validate themselves from now on.
+        synchronized (this) {
+            if (! closed) LOGGER.warning("File watcher stopped unexpectedly");
+            closed = true;
+            dirs.clear();
+        }
+    }
+
+}
@@ -3,33 +3,125 @@ package net.instant.util.fileprod;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import net.instant.util.Util;
 
 public class FilesystemProducer implements Producer {
 
+    /* Files smaller than MAP_THRESHOLD are read into the heap; larger ones
+     * are memory-mapped instead, and raw connections stream them directly
+     * from the file (see openChannel()). As a mapping faults when it is
+     * accessed after the file has been truncated, the content of mapped
+     * cells is (apart from getData() itself) only ever read through file
+     * channels. If a FileWatcher is given, the file is only checked for
+     * modifications when the watcher reports a change to its directory. */
     public static class FilesystemFileCell extends FileCell {
 
+        public static final int MAP_THRESHOLD = 1048576;
+
         private final File path;
+        private final FileWatcher watcher;
+        private final Path watchedDir;
+        private volatile long validVersion;
 
+        public FilesystemFileCell(String name, File path,
+                                  FileWatcher watcher) throws IOException {
+            super(name, loadFile(path), path.lastModified());
+            this.path = path;
+            this.watcher = watcher;
+            this.watchedDir = (watcher == null) ? null :
+                watcher.register(path.getAbsoluteFile().getParentFile());
+            this.validVersion = -1;
+            // A pre-compressed sibling is only used if it is not older
+            // than the file itself.
+            File gzPath = new File(path.getPath() + ".gz");
+            if (gzPath.isFile() && gzPath.lastModified() >= getCreated())
+                addVariant("gzip", new FilesystemFileCell(name, gzPath,
+                                                          watcher));
+        }
         public FilesystemFileCell(String name, File path)
                 throws IOException {
-            super(name, new FileInputStream(path), path.lastModified());
-            this.path = path;
+            this(name, path, null);
         }
 
         public File getPath() {
             return path;
         }
 
+        /* Snapshots are not backed by the file anymore. */
+        public FileChannel openChannel() throws IOException {
+            if (! isMapped()) return null;
+            return new FileInputStream(path).getChannel();
+        }
+
+        public boolean isMapped() {
+            return (getRawData() instanceof MappedByteBuffer);
+        }
+
         public boolean isValid() {
+            // The version must be retrieved before checking the file so
+            // that changes happening in between are not missed.
+            long version = (watchedDir == null) ? -1 :
+                watcher.getVersion(watchedDir);
+            if (version != -1 && version == validVersion) return true;
             /* BUG: Assumes that no file was last modified at the Epoch */
             long modified = getPath().lastModified();
-            return (modified != 0 && modified <= getCreated());
+            if (modified == 0 || modified > getCreated()) return false;
+            FileCell gz = getVariant("gzip");
+            if (gz != null && ! gz.isValid()) return false;
+            validVersion = version;
+            return true;
+        }
+
+        protected void writeContent(OutputStream out) throws IOException {
+            if (! isMapped()) {
+                super.writeContent(out);
+                return;
+            }
+            FileChannel ch = openChannel();
+            try {
+                ByteBuffer buf = ByteBuffer.allocate(Util.BUFFER_SIZE);
+                long size = getSize();
+                long pos = 0;
+                while (pos < size) {
+                    buf.clear();
+                    if (size - pos < buf.capacity())
+                        buf.limit((int) (size - pos));
+                    int rd = ch.read(buf, pos);
+                    if (rd < 0)
+                        throw new IOException("File " + path +
+                            " truncated while being read");
+                    out.write(buf.array(), 0, rd);
+                    pos += rd;
+                }
+            } finally {
+                ch.close();
+            }
+        }
+
+        private static ByteBuffer loadFile(File path) throws IOException {
+            FileInputStream input = new FileInputStream(path);
+            try {
+                FileChannel ch = input.getChannel();
+                long size = ch.size();
+                if (size < MAP_THRESHOLD) return Util.readInputStream(input);
+                return ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } finally {
+                input.close();
+            }
         }
 
     }
 
     private File chroot;
     private File workdir;
+    private FileWatcher watcher;
 
     public FilesystemProducer(File chroot, File workdir) {
         this.chroot = chroot;
@@ -53,6 +145,13 @@ public class FilesystemProducer implements Producer {
         workdir = f;
     }
 
+    public FileWatcher getWatcher() {
+        return watcher;
+    }
+    public void setWatcher(FileWatcher w) {
+        watcher = w;
+    }
+
     public File convert(String name) {
         String adjustedPath = new File(workdir, name).toString();
         // HACK: Force adjustedPath to be relative.
@@ -62,14 +161,37 @@ public class FilesystemProducer implements Producer {
         return new File(chroot, adjustedPath);
     }
 
+    /**
+     * List the names of all files below the directory called dir.
+     * The names are formed by appending the files' paths relative to the
+     * directory to dir (which should, hence, end with a slash).
+     */
+    public List<String> listFiles(String dir) {
+        List<String> ret = new ArrayList<String>();
+        listFiles(convert(dir), dir, ret);
+        return ret;
+    }
+
     public ProducerJob produce(String name) {
         final File path = convert(name);
         if (! path.isFile()) return null;
         return new ProducerJob(name) {
             protected FileCell produce() throws IOException {
-                return new FilesystemFileCell(getName(), path);
+                return new FilesystemFileCell(getName(), path, watcher);
             }
         };
     }
 
+    private static void listFiles(File dir, String name, List<String> out) {
+        File[] children = dir.listFiles();
+        if (children == null) return;
+        for (File f : children) {
+            if (f.isDirectory()) {
+                listFiles(f, name + f.getName() + "/", out);
+            } else if (f.isFile()) {
+                out.add(name + f.getName());
+            }
+        }
+    }
+
 }
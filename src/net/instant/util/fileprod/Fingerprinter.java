@@ -0,0 +1,211 @@
+package net.instant.util.fileprod;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import net.instant.util.Util;
+
+/**
+ * Maintains content-addressed ("fingerprinted") names of files and
+ * rewrites references to files to use them.
+ * Whenever a file whose name is selected via fingerprint() is produced,
+ * a fingerprinted name (the original one with FileCell.getFingerprint()
+ * inserted before the extension) is recorded for it. Files selected via
+ * rewrite() have every reference to a file with a fingerprinted name
+ * replaced by that name when they are produced; as their content depends
+ * on the fingerprints of other files, they become invalid whenever any of
+ * those changes. Requests for fingerprinted names are expected to be
+ * mapped back to the original ones (e.g. by an alias matching
+ * FINGERPRINTED_RE); since a fingerprinted name always refers to the same
+ * content, responses to them can be cached indefinitely (see
+ * isFingerprint()).
+ * References are absolute paths (such as "/static/main.js"); anything that
+ * is not exactly the name of a fingerprinted file is left alone.
+ */
+public class Fingerprinter {
+
+    public static final int FINGERPRINT_LENGTH = 16;
+
+    public static final String FINGERPRINT_RE =
+        "[0-9a-f]{" + FINGERPRINT_LENGTH + "}";
+
+    /* A fingerprinted name. Group 1 is the base name, group 2 the
+     * fingerprint, group 3 the extension (including the dot). */
+    public static final String FINGERPRINTED_RE =
+        "(.+)\\.(" + FINGERPRINT_RE + ")(\\.[^./]+)";
+
+    private static final Pattern FINGERPRINTED =
+        Pattern.compile(FINGERPRINTED_RE);
+    private static final Pattern EXTENSION = Pattern.compile("\\.[^./]+$");
+    private static final Pattern REFERENCE =
+        Pattern.compile("/[A-Za-z0-9_.~/-]+");
+
+    /* Maps bytes to characters one-to-one, so that content that is not
+     * valid text survives being rewritten. */
+    private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+    /* The content is that of the source with references rewritten; the
+     * cell is valid as long as the source is and no fingerprint has
+     * changed since it was created. */
+    public class RewrittenFileCell extends FileCell {
+
+        private final FileCell source;
+        private final long version;
+
+        public RewrittenFileCell(FileCell source, ByteBuffer content,
+                                 long version) {
+            super(source.getName(), content, source.getCreated());
+            this.source = source;
+            this.version = version;
+        }
+
+        public FileCell getSource() {
+            return source;
+        }
+
+        public boolean isValid() {
+            return (version == getVersion() && source.isValid());
+        }
+
+    }
+
+    private final List<Pattern> fingerprinted;
+    private final List<Pattern> rewritten;
+    private final Map<String, String> names;
+    private final AtomicLong version;
+
+    public Fingerprinter() {
+        this.fingerprinted = new LinkedList<Pattern>();
+        this.rewritten = new LinkedList<Pattern>();
+        this.names = new ConcurrentHashMap<String, String>();
+        this.version = new AtomicLong();
+    }
+
+    /**
+     * Record fingerprinted names for the files whose names match p.
+     * Only names that have an extension can be fingerprinted.
+     */
+    public synchronized void fingerprint(Pattern p) {
+        fingerprinted.add(p);
+    }
+    public void fingerprint(String p) {
+        fingerprint(Pattern.compile(p));
+    }
+
+    /**
+     * Rewrite references in the files whose names match p.
+     */
+    public synchronized void rewrite(Pattern p) {
+        rewritten.add(p);
+    }
+    public void rewrite(String p) {
+        rewrite(Pattern.compile(p));
+    }
+
+    /**
+     * A counter that changes whenever a fingerprinted name does.
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * The amount of fingerprinted names known.
+     */
+    public int getCount() {
+        return names.size();
+    }
+
+    /**
+     * The fingerprinted name of the file called name, or null if there is
+     * none (yet).
+     */
+    public String getFingerprintedName(String name) {
+        return names.get(name);
+    }
+
+    /**
+     * Record the fingerprinted name of f (if its name is selected).
+     * This is expected to be called (by FileProducer) whenever a file is
+     * produced.
+     */
+    public void update(FileCell f) {
+        String name = Util.splitQueryString(f.getName())[0];
+        if (! matches(fingerprinted, name)) return;
+        Matcher m = EXTENSION.matcher(name);
+        String fp = f.getFingerprint();
+        if (! m.find() || fp == null) return;
+        String fpName = name.substring(0, m.start()) + "." + fp + m.group();
+        String old = names.put(name, fpName);
+        if (! fpName.equals(old)) version.incrementAndGet();
+    }
+
+    /**
+     * Wrap job such that references in the file it produces are rewritten
+     * (if the file's name is selected for that).
+     */
+    public ProducerJob wrap(final ProducerJob job) {
+        String name = Util.splitQueryString(job.getName())[0];
+        if (! matches(rewritten, name)) return job;
+        return new ProducerJob(job.getName()) {
+            protected FileCell produce() throws IOException {
+                return rewriteCell(job.produce());
+            }
+        };
+    }
+
+    public String toString() {
+        return String.format("%s@%x[%d names, version %d]",
+            getClass().getName(), hashCode(), getCount(), getVersion());
+    }
+
+    private FileCell rewriteCell(FileCell source) throws IOException {
+        if (source == null || source.getData() == null) return source;
+        // The version must be retrieved before the fingerprints so that
+        // changes happening in between invalidate the result.
+        long v = getVersion();
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        source.writeContent(content);
+        String text = new String(content.toByteArray(), CHARSET);
+        Matcher m = REFERENCE.matcher(text);
+        StringBuffer sb = new StringBuffer();
+        while (m.find()) {
+            String fpName = names.get(m.group());
+            if (fpName != null)
+                m.appendReplacement(sb, Matcher.quoteReplacement(fpName));
+        }
+        m.appendTail(sb);
+        return new RewrittenFileCell(source,
+                                     CHARSET.encode(sb.toString()), v);
+    }
+
+    private synchronized boolean matches(List<Pattern> list, String name) {
+        return Util.matchWhitelist(name, list);
+    }
+
+    /**
+     * Return the fingerprint embedded into name, or null if there is none.
+     */
+    public static String getFingerprint(String name) {
+        Matcher m = FINGERPRINTED.matcher(name);
+        return (m.matches()) ? m.group(2) : null;
+    }
+
+    /**
+     * Test whether name is the fingerprinted name of f, and, hence, the
+     * content that name refers to is (still) that of f.
+     */
+    public static boolean isFingerprint(String name, FileCell f) {
+        String fp = getFingerprint(name);
+        return (fp != null && fp.equals(f.getFingerprint()));
+    }
+
+}
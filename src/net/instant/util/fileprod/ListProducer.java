@@ -6,6 +6,7 @@ import java.util.List;
 public class ListProducer implements Producer {
 
     private final List<Producer> children;
+    private long modifications;
 
     public ListProducer() {
         children = new ArrayList<Producer>();
@@ -16,9 +17,29 @@ public class ListProducer implements Producer {
     }
     public synchronized void add(Producer p) {
         children.add(p);
+        modifications++;
     }
     public synchronized void remove(Producer p) {
         children.remove(p);
+        modifications++;
+    }
+
+    /**
+     * A number that changes whenever the children of this instance (or of
+     * ListProducer-s among them) are modified.
+     */
+    public long getVersion() {
+        long ret;
+        Producer[] ch;
+        synchronized (this) {
+            ret = modifications;
+            ch = getChildren();
+        }
+        for (Producer p : ch) {
+            if (p instanceof ListProducer)
+                ret += ((ListProducer) p).getVersion();
+        }
+        return ret;
     }
 
     public ProducerJob produce(String name) {
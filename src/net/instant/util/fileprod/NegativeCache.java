@@ -0,0 +1,141 @@
+package net.instant.util.fileprod;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import net.instant.util.Util;
+import net.instant.util.config.Configuration;
+
+/**
+ * A bounded set of names that recently could not be produced.
+ * Entries expire after a configurable time, since not every way a file can
+ * come into existence can be observed; beyond that, the whole set is
+ * discarded whenever the producers it describes change (see
+ * checkVersion()) or clear() is invoked (e.g. by a FileWatcher reporting a
+ * change). When the set is full, the least recently used entry is dropped.
+ */
+public class NegativeCache {
+
+    private static final String K_MAX_SIZE =
+        "instant.http.cache.negative.maxSize";
+    private static final String K_TTL = "instant.http.cache.negative.ttl";
+
+    public static final int DEFAULT_MAX_SIZE = 4096;
+    public static final long DEFAULT_TTL = 10000;
+
+    private final Map<String, Long> entries;
+    private final int maxSize;
+    private final long ttl;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private long version;
+
+    public NegativeCache(final int maxSize, long ttl) {
+        this.entries = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, Long> e) {
+                return size() > maxSize;
+            }
+        };
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+    }
+    public NegativeCache() {
+        this(DEFAULT_MAX_SIZE, DEFAULT_TTL);
+    }
+
+    /**
+     * The maximum amount of names held.
+     * Non-positive values disable the cache.
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * For how many milliseconds a name is remembered.
+     * Non-positive values disable the cache.
+     */
+    public long getTTL() {
+        return ttl;
+    }
+
+    /**
+     * The amount of names held (including expired ones that have not been
+     * looked up since expiring).
+     */
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    /**
+     * The amount of lookups that found a (non-expired) name.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * The amount of lookups that did not find a name.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public synchronized boolean contains(String name) {
+        Long expiry = entries.get(name);
+        if (expiry != null && expiry < System.currentTimeMillis()) {
+            entries.remove(name);
+            expiry = null;
+        }
+        if (expiry == null) {
+            misses.incrementAndGet();
+            return false;
+        }
+        hits.incrementAndGet();
+        return true;
+    }
+
+    public synchronized void add(String name) {
+        if (maxSize <= 0 || ttl <= 0) return;
+        entries.put(name, System.currentTimeMillis() + ttl);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Discard all entries if version differs from the one passed the
+     * last time.
+     * version is expected to change whenever the set of names that can be
+     * produced might have changed (see ListProducer.getVersion()).
+     */
+    public synchronized void checkVersion(long version) {
+        if (version == this.version) return;
+        this.version = version;
+        entries.clear();
+    }
+
+    public Runnable getClearTask() {
+        return new Runnable() {
+            public void run() {
+                clear();
+            }
+        };
+    }
+
+    public String toString() {
+        return String.format("%s@%x[%d/%d names, %d hits, %d misses]",
+            getClass().getName(), hashCode(), getSize(), getMaxSize(),
+            getHits(), getMisses());
+    }
+
+    public static NegativeCache fromConfig(Configuration cfg) {
+        return new NegativeCache(
+            (int) Util.parseLong(cfg.get(K_MAX_SIZE), DEFAULT_MAX_SIZE),
+            Util.parseLong(cfg.get(K_TTL), DEFAULT_TTL));
+    }
+
+}
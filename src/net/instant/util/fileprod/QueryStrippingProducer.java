@@ -1,6 +1,9 @@
 package net.instant.util.fileprod;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.Map;
 import net.instant.util.Util;
 
 public class QueryStrippingProducer implements Producer {
@@ -18,6 +21,35 @@ public class QueryStrippingProducer implements Producer {
             return source;
         }
 
+        public FileChannel openChannel() throws IOException {
+            return source.openChannel();
+        }
+
+        protected void writeContent(OutputStream out) throws IOException {
+            source.writeContent(out);
+        }
+
+        public String getETag() {
+            return source.getETag();
+        }
+        public String getFingerprint() {
+            return source.getFingerprint();
+        }
+
+        public Map<String, FileCell> getVariants() {
+            return source.getVariants();
+        }
+        public FileCell getVariant(String encoding) {
+            return source.getVariant(encoding);
+        }
+        public void addVariant(String encoding, FileCell cell) {
+            source.addVariant(encoding, cell);
+        }
+
+        public void encodeVariants() throws IOException {
+            source.encodeVariants();
+        }
+
         public boolean isValid() {
             return source.isValid();
         }
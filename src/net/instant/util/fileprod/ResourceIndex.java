@@ -0,0 +1,169 @@
+package net.instant.util.fileprod;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * An index of the resources contained in a sequence of JAR files and
+ * directories (such as a class path).
+ * Only resources whose names start with one of a given set of prefixes are
+ * indexed. Sources added earlier take precedence over later ones (as with a
+ * class loader that delegates to its parent first). Archives are kept open,
+ * so that their entries can be read without searching them again; for
+ * those, the size and CRC of each entry are known in advance as well. Files
+ * from directories are read anew every time.
+ */
+public class ResourceIndex implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger("ResourceIndex");
+
+    public static class Entry {
+
+        private final String name;
+        private final ZipFile archive;
+        private final ZipEntry entry;
+        private final File file;
+
+        protected Entry(String name, ZipFile archive, ZipEntry entry) {
+            this.name = name;
+            this.archive = archive;
+            this.entry = entry;
+            this.file = null;
+        }
+        protected Entry(String name, File file) {
+            this.name = name;
+            this.archive = null;
+            this.entry = null;
+            this.file = file;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * The size of the resource, or -1 if it is not known in advance.
+         */
+        public long getSize() {
+            return (entry != null) ? entry.getSize() : -1;
+        }
+
+        /**
+         * The CRC-32 of the resource, or -1 if it is not known in advance.
+         */
+        public long getCRC() {
+            return (entry != null) ? entry.getCrc() : -1;
+        }
+
+        /**
+         * The modification time of the resource (in milliseconds since the
+         * Epoch).
+         */
+        public long getTime() {
+            return (entry != null) ? entry.getTime() : file.lastModified();
+        }
+
+        public InputStream open() throws IOException {
+            if (entry != null) return archive.getInputStream(entry);
+            return new FileInputStream(file);
+        }
+
+    }
+
+    private final List<String> prefixes;
+    private final Map<String, Entry> entries;
+    private final List<ZipFile> archives;
+
+    public ResourceIndex(Collection<String> prefixes) {
+        this.prefixes = new ArrayList<String>(prefixes);
+        this.entries = new ConcurrentHashMap<String, Entry>();
+        this.archives = new ArrayList<ZipFile>();
+    }
+
+    public Entry get(String name) {
+        return entries.get(name);
+    }
+
+    public Set<String> getNames() {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Index the resources in source, which is either a JAR file or a
+     * directory.
+     * Nonexistent or unreadable sources are skipped (with a warning).
+     */
+    public synchronized void addSource(File source) {
+        try {
+            if (source.isDirectory()) {
+                for (String p : prefixes)
+                    addDirectory(new File(source, p), p);
+            } else if (source.isFile()) {
+                addArchive(source);
+            }
+        } catch (IOException exc) {
+            LOGGER.log(Level.WARNING, "Could not index resources in " +
+                source, exc);
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        entries.clear();
+        for (ZipFile f : archives) f.close();
+        archives.clear();
+    }
+
+    private void addArchive(File source) throws IOException {
+        ZipFile zf = new ZipFile(source);
+        archives.add(zf);
+        Enumeration<? extends ZipEntry> en = zf.entries();
+        while (en.hasMoreElements()) {
+            ZipEntry ze = en.nextElement();
+            String name = ze.getName();
+            if (ze.isDirectory() || ! matchesPrefix(name) ||
+                    entries.containsKey(name))
+                continue;
+            entries.put(name, new Entry(name, zf, ze));
+        }
+    }
+
+    private void addDirectory(File dir, String name) {
+        File[] children = dir.listFiles();
+        if (children == null) return;
+        for (File f : children) {
+            String childName = name + f.getName();
+            if (f.isDirectory()) {
+                addDirectory(f, childName + "/");
+            } else if (! entries.containsKey(childName)) {
+                entries.put(childName, new Entry(childName, f));
+            }
+        }
+    }
+
+    private boolean matchesPrefix(String name) {
+        for (String p : prefixes) {
+            if (name.startsWith(p)) return true;
+        }
+        return false;
+    }
+
+}
@@ -5,7 +5,32 @@ import java.io.InputStream;
 
 public class ResourceProducer implements Producer {
 
+    /* The ETag of a cell read from an archive is derived from the CRC and
+     * size recorded in the archive's directory instead of being computed
+     * from the content. */
+    public static class ResourceFileCell extends FileCell {
+
+        private final ResourceIndex.Entry entry;
+
+        public ResourceFileCell(String name, ResourceIndex.Entry entry)
+                throws IOException {
+            super(name, entry.open(), entry.getTime());
+            this.entry = entry;
+        }
+
+        public ResourceIndex.Entry getEntry() {
+            return entry;
+        }
+
+        public String getETag() {
+            if (entry.getCRC() == -1) return super.getETag();
+            return String.format("%08x-%x", entry.getCRC(), getSize());
+        }
+
+    }
+
     private ClassLoader loader;
+    private ResourceIndex index;
 
     public ResourceProducer(ClassLoader cl) {
         loader = cl;
@@ -23,10 +48,33 @@ public class ResourceProducer implements Producer {
         loader = cl;
     }
 
+    /**
+     * An index of (some of) the resources visible through the class
+     * loader.
+     * Resources found in the index are read directly from where it says
+     * they are; others are looked up through the class loader as usual.
+     */
+    public ResourceIndex getIndex() {
+        return index;
+    }
+    public void setIndex(ResourceIndex idx) {
+        index = idx;
+    }
+
     public ProducerJob produce(String name) {
+        String resName = name.replaceAll("^/+|\\?.*$", "");
+        ResourceIndex idx = index;
+        final ResourceIndex.Entry entry = (idx == null) ? null :
+            idx.get(resName);
+        if (entry != null) {
+            return new ProducerJob(name) {
+                protected FileCell produce() throws IOException {
+                    return new ResourceFileCell(getName(), entry);
+                }
+            };
+        }
         final long pollTime = System.currentTimeMillis();
-        final InputStream is = loader.getResourceAsStream(
-            name.replaceAll("^/+|\\?.*$", ""));
+        final InputStream is = loader.getResourceAsStream(resName);
         if (is == null) return null;
         return new ProducerJob(name) {
             protected FileCell produce() throws IOException {
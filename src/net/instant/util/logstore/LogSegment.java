@@ -0,0 +1,277 @@
+package net.instant.util.logstore;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * A single file of a SegmentedLog along with its sparse index.
+ * The log file consists of records of the form (ID: 8 bytes, payload length:
+ * 4 bytes, payload, CRC-32 of payload: 4 bytes), all in big-endian byte
+ * order. The index file is memory-mapped and consists of (ID, offset) pairs
+ * (8 bytes each) for every record that starts at least INDEX_INTERVAL bytes
+ * after the last indexed one; unused entries are zero.
+ * Instances are not thread-safe; SegmentedLog serializes access to them.
+ */
+public class LogSegment implements Closeable {
+
+    public static final int INDEX_INTERVAL = 4096;
+    public static final int INDEX_ENTRY_SIZE = 16;
+    public static final int RECORD_OVERHEAD = 16;
+
+    private final long baseID;
+    private final File logFile;
+    private final File indexFile;
+    private final int indexCapacity;
+    private FileChannel channel;
+    private MappedByteBuffer index;
+    private int indexCount;
+    private long size;
+    private long lastIndexed;
+    private long lastID;
+
+    public LogSegment(File dir, long baseID, long maxSize) {
+        String basename = String.format((Locale) null, "%016x",
+                                        baseID);
+        this.baseID = baseID;
+        this.logFile = new File(dir, basename + SegmentedLog.LOG_SUFFIX);
+        this.indexFile = new File(dir, basename + SegmentedLog.INDEX_SUFFIX);
+        this.indexCapacity = (int) Math.min(maxSize / INDEX_INTERVAL + 2,
+            Integer.MAX_VALUE / INDEX_ENTRY_SIZE);
+        this.size = logFile.length();
+        this.lastIndexed = -1;
+    }
+
+    public long getBaseID() {
+        return baseID;
+    }
+
+    public long getLastID() {
+        return lastID;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public File getLogFile() {
+        return logFile;
+    }
+
+    public File getIndexFile() {
+        return indexFile;
+    }
+
+    public boolean isOpen() {
+        return (channel != null);
+    }
+
+    /**
+     * Open the segment's files, creating them if necessary.
+     * If recover is true, the tail of the log is validated, any incomplete
+     * trailing record is truncated away, and missing index entries are
+     * added.
+     */
+    public void open(boolean recover) throws IOException {
+        if (channel != null) return;
+        channel = new RandomAccessFile(logFile, "rw").getChannel();
+        FileChannel ic = new RandomAccessFile(indexFile, "rw").getChannel();
+        try {
+            index = ic.map(FileChannel.MapMode.READ_WRITE, 0,
+                           (long) indexCapacity * INDEX_ENTRY_SIZE);
+        } finally {
+            // The mapping stays valid after the channel is closed.
+            ic.close();
+        }
+        size = channel.size();
+        indexCount = 0;
+        while (indexCount < indexCapacity && indexID(indexCount) != 0 &&
+               indexOffset(indexCount) < size)
+            indexCount++;
+        if (indexCount > 0) lastIndexed = indexOffset(indexCount - 1);
+        if (recover) recover();
+    }
+
+    public void close() throws IOException {
+        if (channel == null) return;
+        index.force();
+        channel.close();
+        channel = null;
+        index = null;
+    }
+
+    /**
+     * Flush all data written so far to stable storage.
+     */
+    public void force() throws IOException {
+        channel.force(false);
+        index.force();
+    }
+
+    /**
+     * Append the given records.
+     * The caller is responsible for calling force() afterwards.
+     */
+    public void append(List<SegmentedLog.Record> records) throws IOException {
+        int total = 0;
+        for (SegmentedLog.Record r : records)
+            total += RECORD_OVERHEAD + r.getData().length;
+        ByteBuffer buf = ByteBuffer.allocate(total);
+        long offset = size;
+        CRC32 crc = new CRC32();
+        for (SegmentedLog.Record r : records) {
+            if (lastIndexed == -1 || offset - lastIndexed >= INDEX_INTERVAL)
+                addIndex(r.getID(), offset);
+            byte[] data = r.getData();
+            crc.reset();
+            crc.update(data, 0, data.length);
+            buf.putLong(r.getID());
+            buf.putInt(data.length);
+            buf.put(data);
+            buf.putInt((int) crc.getValue());
+            offset += RECORD_OVERHEAD + data.length;
+            lastID = r.getID();
+        }
+        buf.flip();
+        while (buf.hasRemaining()) channel.write(buf, size + buf.position());
+        size = offset;
+    }
+
+    /**
+     * Read the records between the given offsets.
+     * Only records whose ID-s lie strictly between minID and maxID are
+     * added to drain; reading stops at the first record whose ID is not less
+     * than maxID.
+     */
+    public void read(long from, long to, long minID, long maxID,
+                     List<SegmentedLog.Record> drain) throws IOException {
+        DataInputStream in = openAt(from);
+        long offset = from;
+        while (offset < to) {
+            long id = in.readLong();
+            int len = in.readInt();
+            if (Long.compareUnsigned(id, maxID) >= 0) break;
+            byte[] data = new byte[len];
+            in.readFully(data);
+            in.readInt();
+            offset += RECORD_OVERHEAD + len;
+            if (Long.compareUnsigned(id, minID) > 0)
+                drain.add(new SegmentedLog.Record(id, data));
+        }
+    }
+
+    public int getIndexCount() {
+        return indexCount;
+    }
+
+    /**
+     * The offset of the indexed record at position i, or of the start (for
+     * -1) or the end (for getIndexCount()) of the log.
+     */
+    public long getIndexOffset(int i) {
+        if (i < 0) return 0;
+        if (i >= indexCount) return size;
+        return indexOffset(i);
+    }
+
+    /**
+     * Find the last index position whose ID is less than id.
+     * Returns -1 if there is none.
+     */
+    public int findIndex(long id) {
+        int lo = 0, hi = indexCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (Long.compareUnsigned(indexID(mid), id) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo - 1;
+    }
+
+    /**
+     * Remove the segment's files.
+     */
+    public void delete() throws IOException {
+        close();
+        if (! logFile.delete() && logFile.exists())
+            throw new IOException("Could not delete " + logFile);
+        if (! indexFile.delete() && indexFile.exists())
+            throw new IOException("Could not delete " + indexFile);
+    }
+
+    private void recover() throws IOException {
+        long offset = (indexCount == 0) ? 0 : indexOffset(indexCount - 1);
+        DataInputStream in = openAt(offset);
+        CRC32 crc = new CRC32();
+        lastID = 0;
+        for (;;) {
+            long id;
+            byte[] data;
+            int checksum;
+            try {
+                if (offset == size) break;
+                id = in.readLong();
+                int len = in.readInt();
+                if (len < 0 || offset + RECORD_OVERHEAD + len > size) break;
+                data = new byte[len];
+                in.readFully(data);
+                checksum = in.readInt();
+            } catch (EOFException exc) {
+                break;
+            }
+            crc.reset();
+            crc.update(data, 0, data.length);
+            if ((int) crc.getValue() != checksum) break;
+            if (lastIndexed == -1 || offset - lastIndexed >= INDEX_INTERVAL)
+                addIndex(id, offset);
+            offset += RECORD_OVERHEAD + data.length;
+            lastID = id;
+        }
+        if (offset != size) {
+            channel.truncate(offset);
+            size = offset;
+        }
+        while (indexCount > 0 && indexOffset(indexCount - 1) >= size) {
+            indexCount--;
+            index.putLong(indexCount * INDEX_ENTRY_SIZE, 0);
+            index.putLong(indexCount * INDEX_ENTRY_SIZE + 8, 0);
+        }
+        if (lastID == 0 && indexCount > 0) lastID = indexID(indexCount - 1);
+    }
+
+    private DataInputStream openAt(long offset) throws IOException {
+        channel.position(offset);
+        return new DataInputStream(new BufferedInputStream(
+            Channels.newInputStream(channel), INDEX_INTERVAL));
+    }
+
+    private void addIndex(long id, long offset) {
+        if (indexCount >= indexCapacity) return;
+        index.putLong(indexCount * INDEX_ENTRY_SIZE, id);
+        index.putLong(indexCount * INDEX_ENTRY_SIZE + 8, offset);
+        indexCount++;
+        lastIndexed = offset;
+    }
+
+    private long indexID(int i) {
+        return index.getLong(i * INDEX_ENTRY_SIZE);
+    }
+    private long indexOffset(int i) {
+        return index.getLong(i * INDEX_ENTRY_SIZE + 8);
+    }
+
+}
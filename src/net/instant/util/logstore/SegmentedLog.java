@@ -0,0 +1,381 @@
+package net.instant.util.logstore;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An append-only store of records ordered by 64-bit ID-s.
+ * The ID-s are expected to be generated by a UniqueCounter, i.e. to contain
+ * a millisecond timestamp in their upper 54 bits, and to be appended in
+ * (approximately) ascending order.
+ * The records are stored in a directory as a sequence of segment files,
+ * each named after the first ID it contains; a new segment is started when
+ * the current one exceeds a size or an age limit. Appending only enqueues
+ * records; they are written out (and flushed to stable storage) in batches
+ * by flush(), which is meant to be invoked regularly.
+ */
+public class SegmentedLog implements Closeable {
+
+    public static final String LOG_SUFFIX = ".log";
+    public static final String INDEX_SUFFIX = ".idx";
+
+    public static class Record {
+
+        private final long id;
+        private final byte[] data;
+
+        public Record(long id, byte[] data) {
+            this.id = id;
+            this.data = data;
+        }
+
+        public long getID() {
+            return id;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+    }
+
+    private static final Comparator<Record> ID_ORDER =
+        new Comparator<Record>() {
+            public int compare(Record a, Record b) {
+                return Long.compareUnsigned(a.getID(), b.getID());
+            }
+        };
+
+    private final File directory;
+    private final long maxSegmentSize;
+    private final long maxSegmentAge;
+    private final List<LogSegment> segments;
+    private final Object pendingLock;
+    private List<Record> pending;
+    private volatile boolean closed;
+    private volatile long lastAccess;
+
+    public SegmentedLog(File directory, long maxSegmentSize,
+                        long maxSegmentAge) throws IOException {
+        this.directory = directory;
+        this.maxSegmentSize = maxSegmentSize;
+        this.maxSegmentAge = maxSegmentAge;
+        this.segments = new ArrayList<LogSegment>();
+        this.pendingLock = new Object();
+        this.pending = new ArrayList<Record>();
+        this.lastAccess = System.currentTimeMillis();
+        load();
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public long getMaxSegmentSize() {
+        return maxSegmentSize;
+    }
+
+    public long getMaxSegmentAge() {
+        return maxSegmentAge;
+    }
+
+    /**
+     * The time (as a UNIX timestamp in milliseconds) of the last append or
+     * read (or of the opening of the log if there has been none).
+     */
+    public long getLastAccess() {
+        return lastAccess;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    public synchronized long getSize() {
+        long ret = 0;
+        for (LogSegment s : segments) ret += s.getSize();
+        return ret;
+    }
+
+    /**
+     * Enqueue a record for being written out.
+     * The record becomes durable after the next flush(); readers see it
+     * immediately. Returns false (and drops the record) if the log has been
+     * closed.
+     */
+    public boolean append(long id, byte[] data) {
+        lastAccess = System.currentTimeMillis();
+        synchronized (pendingLock) {
+            if (closed) return false;
+            pending.add(new Record(id, data));
+            return true;
+        }
+    }
+
+    /**
+     * Write out all pending records and flush them to stable storage.
+     * Returns the amount of records written.
+     */
+    public synchronized int flush() throws IOException {
+        List<Record> batch;
+        synchronized (pendingLock) {
+            if (pending.isEmpty()) return 0;
+            batch = pending;
+            pending = new ArrayList<Record>();
+        }
+        return write(batch);
+    }
+
+    /**
+     * Retrieve up to limit records with ID-s less than before, in ascending
+     * order.
+     * Returns null if the log has been closed.
+     */
+    public synchronized List<Record> readBefore(long before, int limit)
+            throws IOException {
+        if (closed) return null;
+        lastAccess = System.currentTimeMillis();
+        List<Record> ret = readStoredBefore(before, limit);
+        if (mergePending(ret, 0, before)) {
+            int size = ret.size();
+            if (size > limit) ret = ret.subList(size - limit, size);
+        }
+        return ret;
+    }
+
+    /**
+     * Retrieve up to limit records with ID-s greater than after, in
+     * ascending order.
+     * Returns null if the log has been closed.
+     */
+    public synchronized List<Record> readAfter(long after, int limit)
+            throws IOException {
+        if (closed) return null;
+        lastAccess = System.currentTimeMillis();
+        List<Record> ret = readStoredAfter(after, limit);
+        if (mergePending(ret, after, -1L) && ret.size() > limit)
+            ret = ret.subList(0, limit);
+        return ret;
+    }
+
+    /**
+     * Delete old segments.
+     * A segment is deleted if all its records are older than minTime (a
+     * UNIX timestamp in milliseconds), or if the total size of the log
+     * exceeds maxSize (unless that is negative). The current segment is
+     * never deleted. Returns the amount of segments deleted.
+     */
+    public synchronized int enforceRetention(long minTime, long maxSize)
+            throws IOException {
+        if (closed) return 0;
+        long total = 0;
+        for (LogSegment s : segments) total += s.getSize();
+        int count = 0;
+        while (segments.size() > 1) {
+            LogSegment first = segments.get(0);
+            long end = segments.get(1).getBaseID() >>> 10;
+            if (end >= minTime && (maxSize < 0 || total <= maxSize)) break;
+            first.delete();
+            segments.remove(0);
+            total -= first.getSize();
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Write out the pending records and close the log.
+     * Records appended afterwards are rejected.
+     */
+    public synchronized void close() throws IOException {
+        List<Record> batch;
+        synchronized (pendingLock) {
+            if (closed) return;
+            closed = true;
+            batch = pending;
+            pending = new ArrayList<Record>();
+        }
+        try {
+            if (! batch.isEmpty()) write(batch);
+        } finally {
+            for (LogSegment s : segments) s.close();
+        }
+    }
+
+    /* Add the records that have not been written out yet and whose ID-s
+     * are greater than after and less than before (unless that is -1) to
+     * records, and restore the latter's ID order. Returns whether anything
+     * has been added. The caller must hold the instance's monitor, which
+     * keeps flush() from moving records between the segments and the
+     * pending list in the meantime. */
+    private boolean mergePending(List<Record> records, long after,
+                                 long before) {
+        int size = records.size();
+        synchronized (pendingLock) {
+            for (Record r : pending) {
+                long id = r.getID();
+                if (Long.compareUnsigned(id, after) > 0 &&
+                        Long.compareUnsigned(id, before) < 0)
+                    records.add(r);
+            }
+        }
+        if (records.size() == size) return false;
+        Collections.sort(records, ID_ORDER);
+        return true;
+    }
+
+    /* The caller must hold the instance's monitor. */
+    private List<Record> readStoredBefore(long before, int limit)
+            throws IOException {
+        List<Record> ret = new ArrayList<Record>();
+        if (limit <= 0) return ret;
+        List<Record> chunk = new ArrayList<Record>();
+        for (int s = segments.size() - 1; s >= 0; s--) {
+            LogSegment seg = segments.get(s);
+            if (Long.compareUnsigned(seg.getBaseID(), before) >= 0) continue;
+            seg.open(false);
+            try {
+                int i = seg.findIndex(before);
+                long to = seg.getSize();
+                for (;;) {
+                    long from = seg.getIndexOffset(i);
+                    chunk.clear();
+                    seg.read(from, to, 0, before, chunk);
+                    int skip = Math.max(chunk.size() + ret.size() - limit,
+                                        0);
+                    ret.addAll(0, chunk.subList(skip, chunk.size()));
+                    if (ret.size() >= limit) return ret;
+                    if (i < 0) break;
+                    to = from;
+                    i--;
+                }
+            } finally {
+                release(seg);
+            }
+        }
+        return ret;
+    }
+
+    /* The caller must hold the instance's monitor. */
+    private List<Record> readStoredAfter(long after, int limit)
+            throws IOException {
+        List<Record> ret = new ArrayList<Record>();
+        if (limit <= 0 || segments.isEmpty()) return ret;
+        int s = segments.size() - 1;
+        while (s > 0 &&
+               Long.compareUnsigned(segments.get(s).getBaseID(), after) > 0)
+            s--;
+        List<Record> chunk = new ArrayList<Record>();
+        for (; s < segments.size(); s++) {
+            LogSegment seg = segments.get(s);
+            seg.open(false);
+            try {
+                int i = Math.max(seg.findIndex(after + 1), 0);
+                for (; i < seg.getIndexCount(); i++) {
+                    chunk.clear();
+                    seg.read(seg.getIndexOffset(i),
+                             seg.getIndexOffset(i + 1), after, -1L, chunk);
+                    for (Record r : chunk) {
+                        ret.add(r);
+                        if (ret.size() >= limit) return ret;
+                    }
+                }
+            } finally {
+                release(seg);
+            }
+        }
+        return ret;
+    }
+
+    /* The caller must hold the instance's monitor. */
+    private int write(List<Record> batch) throws IOException {
+        Collections.sort(batch, ID_ORDER);
+        LogSegment cur = current(batch.get(0).getID());
+        long size = cur.getSize();
+        int start = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            Record r = batch.get(i);
+            if (shouldRoll(cur, size, r.getID())) {
+                cur.append(batch.subList(start, i));
+                cur.force();
+                start = i;
+                cur = roll(r.getID());
+                size = cur.getSize();
+            }
+            size += LogSegment.RECORD_OVERHEAD + r.getData().length;
+        }
+        cur.append(batch.subList(start, batch.size()));
+        cur.force();
+        return batch.size();
+    }
+
+    private void load() throws IOException {
+        if (! directory.isDirectory() && ! directory.mkdirs())
+            throw new IOException("Could not create " + directory);
+        List<Long> bases = new ArrayList<Long>();
+        for (String name : directory.list()) {
+            if (! name.endsWith(LOG_SUFFIX)) continue;
+            try {
+                bases.add(Long.parseUnsignedLong(name.substring(0,
+                    name.length() - LOG_SUFFIX.length()), 16));
+            } catch (NumberFormatException exc) {
+                continue;
+            }
+        }
+        Collections.sort(bases, new Comparator<Long>() {
+            public int compare(Long a, Long b) {
+                return Long.compareUnsigned(a, b);
+            }
+        });
+        for (long b : bases)
+            segments.add(new LogSegment(directory, b, maxSegmentSize));
+        if (! segments.isEmpty())
+            segments.get(segments.size() - 1).open(true);
+    }
+
+    /* Only the most recent segment is kept open permanently. */
+    private void release(LogSegment seg) throws IOException {
+        if (seg != segments.get(segments.size() - 1)) seg.close();
+    }
+
+    private boolean shouldRoll(LogSegment seg, long size, long nextID) {
+        if (size == 0) return false;
+        if (maxSegmentSize >= 0 && size >= maxSegmentSize) return true;
+        if (maxSegmentAge >= 0 &&
+                (nextID >>> 10) - (seg.getBaseID() >>> 10) >= maxSegmentAge)
+            return true;
+        return false;
+    }
+
+    private LogSegment current(long nextID) throws IOException {
+        if (segments.isEmpty()) return roll(nextID);
+        LogSegment ret = segments.get(segments.size() - 1);
+        ret.open(true);
+        return (shouldRoll(ret, ret.getSize(), nextID)) ? roll(nextID) : ret;
+    }
+
+    private LogSegment roll(long baseID) throws IOException {
+        if (! segments.isEmpty()) {
+            LogSegment last = segments.get(segments.size() - 1);
+            // Keep IDs ascending across segments even if the clock went
+            // backwards.
+            if (Long.compareUnsigned(baseID, last.getBaseID()) <= 0)
+                return last;
+            last.close();
+        }
+        LogSegment ret = new LogSegment(directory, baseID, maxSegmentSize);
+        ret.open(true);
+        segments.add(ret);
+        return ret;
+    }
+
+}
@@ -1,5 +1,7 @@
 package net.instant.util.stringmatch;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -8,15 +10,88 @@ public class DefaultStringMatcher implements StringMatcher {
     public static final Pattern GROUPING_RE =
         Pattern.compile("\\\\([0-9]+|\\{[0-9]+\\}|[^0-9])");
 
+    /* A pre-parsed replacement string; consists of literal Strings and
+     * Integer group references. */
+    private static class Template {
+
+        private final List<Object> parts;
+
+        public Template(List<Object> parts) {
+            this.parts = parts;
+        }
+
+        public String expand(Matcher m, int base, int groupCount) {
+            StringBuilder sb = new StringBuilder();
+            for (Object p : parts) {
+                if (p instanceof String) {
+                    sb.append((String) p);
+                    continue;
+                }
+                int g = (Integer) p;
+                if (g > groupCount)
+                    throw new IndexOutOfBoundsException("No group " + g);
+                String v = m.group(base + g);
+                if (v != null) sb.append(v);
+            }
+            return sb.toString();
+        }
+
+        /* Returns null if repl is invalid, so that the error is reported
+         * (by expand()) only when the replacement is actually used. */
+        public static Template parse(String repl) {
+            List<Object> parts = new ArrayList<Object>();
+            Matcher rm = GROUPING_RE.matcher(repl);
+            int last = 0;
+            while (rm.find()) {
+                if (rm.start() != last)
+                    parts.add(repl.substring(last, rm.start()));
+                last = rm.end();
+                String g = rm.group(1);
+                if (g.equals("\\")) {
+                    parts.add(g);
+                } else if (g.startsWith("{")) {
+                    // A brace not followed by a group number is matched by
+                    // the catch-all alternative.
+                    if (g.length() < 2 || ! g.endsWith("}")) return null;
+                    parts.add(parseGroup(g.substring(1, g.length() - 1)));
+                } else if (Character.isDigit(g.charAt(0))) {
+                    parts.add(parseGroup(g));
+                } else {
+                    return null;
+                }
+                if (parts.get(parts.size() - 1) == null) return null;
+            }
+            if (last != repl.length()) parts.add(repl.substring(last));
+            return new Template(parts);
+        }
+
+        private static Integer parseGroup(String g) {
+            try {
+                return Integer.parseInt(g);
+            } catch (NumberFormatException exc) {
+                return null;
+            }
+        }
+
+    }
+
     private final Pattern pattern;
     private final String replacement;
     private final boolean dynamic;
+    private final int groupCount;
+    private final Template template;
+    private final String literal;
 
     public DefaultStringMatcher(Pattern pattern, String replacement,
                                 boolean dynamic) {
         this.pattern = pattern;
         this.replacement = replacement;
         this.dynamic = dynamic;
+        this.groupCount = pattern.matcher("").groupCount();
+        this.template = (dynamic) ? Template.parse(replacement) : null;
+        boolean[] complete = new boolean[1];
+        String prefix = scanLiteral(pattern, complete);
+        this.literal = (complete[0]) ? prefix : null;
     }
 
     public Pattern getPattern() {
@@ -29,19 +104,50 @@ public class DefaultStringMatcher implements StringMatcher {
         return dynamic;
     }
 
+    /**
+     * A string every input matched by this instance starts with.
+     * See getLiteralPrefix(Pattern) for details.
+     */
+    public String getLiteralPrefix() {
+        return (literal != null) ? literal : getLiteralPrefix(pattern);
+    }
+
+    /**
+     * The only string matched by this instance, or null if there might be
+     * more than one.
+     */
+    public String getLiteral() {
+        return literal;
+    }
+
+    /**
+     * The amount of capturing groups in the pattern.
+     */
+    public int getGroupCount() {
+        return groupCount;
+    }
+
     public String match(String input) {
         Matcher m = pattern.matcher(input);
         if (m.matches()) {
-            if (dynamic) {
-                return expand(m, replacement);
-            } else {
-                return replacement;
-            }
+            return replace(m, 0);
         } else {
             return null;
         }
     }
 
+    /**
+     * Compute the replacement for a successful match.
+     * The groups of the pattern are taken from m starting at base, i.e.
+     * group i of the pattern is group base + i of m; this allows m to
+     * stem from a pattern embedding this instance's one.
+     */
+    public String replace(Matcher m, int base) {
+        if (! dynamic) return replacement;
+        if (template == null) return expand(m, replacement);
+        return template.expand(m, base, groupCount);
+    }
+
     public static String expand(Matcher m, String repl) {
         Matcher rm = GROUPING_RE.matcher(repl);
         StringBuffer sb = new StringBuffer();
@@ -65,6 +171,56 @@ public class DefaultStringMatcher implements StringMatcher {
         rm.appendTail(sb);
         return sb.toString();
     }
+
+    /**
+     * Compute a string every input (fully) matched by p starts with.
+     * The computation is conservative; in doubt, a shorter prefix (in
+     * particular, the empty string) is returned.
+     */
+    public static String getLiteralPrefix(Pattern p) {
+        return scanLiteral(p, new boolean[1]);
+    }
+
+    /* complete[0] is set to whether the prefix covers the entire pattern
+     * (i.e. whether the pattern matches only the prefix). */
+    private static String scanLiteral(Pattern p, boolean[] complete) {
+        complete[0] = false;
+        if (p.flags() != 0) return "";
+        String re = p.pattern();
+        // Alternations (even nested ones) might escape the prefix.
+        if (re.indexOf('|') != -1) return "";
+        StringBuilder sb = new StringBuilder();
+        int i = 0, n = re.length();
+        if (re.startsWith("^")) i++;
+        while (i < n) {
+            char c = re.charAt(i);
+            int last = sb.length();
+            if (re.startsWith("\\Q", i)) {
+                int end = re.indexOf("\\E", i + 2);
+                if (end == -1) end = n;
+                sb.append(re, i + 2, end);
+                i = Math.min(end + 2, n);
+                last = sb.length() - 1;
+            } else if (c == '\\' && i + 1 < n &&
+                       ! Character.isLetterOrDigit(re.charAt(i + 1))) {
+                sb.append(re.charAt(i + 1));
+                i += 2;
+            } else if (".[]{}()\\*+?^$".indexOf(c) == -1) {
+                sb.append(c);
+                i++;
+            } else {
+                break;
+            }
+            // A quantifier might apply to the last character.
+            if (i < n && "?*+{".indexOf(re.charAt(i)) != -1) {
+                sb.setLength(Math.max(last, 0));
+                return sb.toString();
+            }
+        }
+        complete[0] = (i == n);
+        return sb.toString();
+    }
+
     private static String escapeExpand(String s) {
         return s.replaceAll("[\\\\$]", "\\\\$0");
     }
@@ -1,27 +1,140 @@
 package net.instant.util.stringmatch;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+/**
+ * A sequence of StringMatcher-s whose first match wins.
+ * Before matching, the children are compiled into a sequence of stages:
+ * runs of consecutive DefaultStringMatcher-s are merged into a hash table
+ * (for those matching a single literal string) and a single alternation of
+ * all other patterns, so that an input can be matched against the whole
+ * run in one go. Other matchers (and patterns that cannot be embedded into
+ * a larger one) form stages of their own. Compilation happens lazily after
+ * every modification.
+ */
 public class ListStringMatcher implements StringMatcher {
 
+    /* Constructs that prevent a pattern from being embedded into a larger
+     * one: backreferences and named groups (which refer to group numbers or
+     * names of the original pattern), inline flags (which might extend
+     * beyond the embedded pattern), and quoting (which might not be
+     * terminated). */
+    private static final Pattern UNMERGEABLE = Pattern.compile(
+        "\\\\[1-9k]|\\\\Q|\\(\\?(?![:=!>]|<[=!])");
+
+    private interface Stage {
+
+        String match(String input);
+
+    }
+
+    private static class OpaqueStage implements Stage {
+
+        private final StringMatcher matcher;
+
+        public OpaqueStage(StringMatcher matcher) {
+            this.matcher = matcher;
+        }
+
+        public String match(String input) {
+            return matcher.match(input);
+        }
+
+    }
+
+    private static class MergedStage implements Stage {
+
+        private final Map<String, Integer> literals;
+        private final List<DefaultStringMatcher> matchers;
+        private final List<DefaultStringMatcher> regexes;
+        private int[] regexIndices;
+        private int[] groupBases;
+        private Pattern combined;
+
+        public MergedStage() {
+            literals = new HashMap<String, Integer>();
+            matchers = new ArrayList<DefaultStringMatcher>();
+            regexes = new ArrayList<DefaultStringMatcher>();
+        }
+
+        public boolean isEmpty() {
+            return matchers.isEmpty();
+        }
+
+        public void add(DefaultStringMatcher m) {
+            int index = matchers.size();
+            matchers.add(m);
+            String lit = m.getLiteral();
+            if (lit != null && ! m.isDynamic()) {
+                if (! literals.containsKey(lit)) literals.put(lit, index);
+            } else {
+                regexes.add(m);
+            }
+        }
+
+        /* Must be called after the last add() and before match(). */
+        public MergedStage finish() {
+            regexIndices = new int[regexes.size()];
+            groupBases = new int[regexes.size()];
+            StringBuilder sb = new StringBuilder();
+            int group = 1;
+            for (int i = 0; i < regexes.size(); i++) {
+                DefaultStringMatcher m = regexes.get(i);
+                regexIndices[i] = matchers.indexOf(m);
+                groupBases[i] = group;
+                if (i != 0) sb.append('|');
+                sb.append('(').append(m.getPattern().pattern()).append(')');
+                group += m.getGroupCount() + 1;
+            }
+            if (! regexes.isEmpty()) combined = Pattern.compile(sb.toString());
+            return this;
+        }
+
+        public String match(String input) {
+            Integer lit = literals.get(input);
+            if (combined != null) {
+                Matcher m = combined.matcher(input);
+                if (m.matches()) {
+                    // The alternation tries its branches in order, so the
+                    // first one that participated is the first pattern that
+                    // matches.
+                    for (int i = 0; i < groupBases.length; i++) {
+                        if (lit != null && regexIndices[i] > lit) break;
+                        if (m.start(groupBases[i]) == -1) continue;
+                        return regexes.get(i).replace(m, groupBases[i]);
+                    }
+                }
+            }
+            if (lit != null) return matchers.get(lit).replace(null, 0);
+            return null;
+        }
+
+    }
+
     private final List<StringMatcher> children;
+    private volatile Stage[] compiled;
 
     public ListStringMatcher() {
-        children = new LinkedList<StringMatcher>();
+        children = new ArrayList<StringMatcher>();
     }
 
-    public StringMatcher[] getChildren() {
+    public synchronized StringMatcher[] getChildren() {
         return children.toArray(new StringMatcher[children.size()]);
     }
 
-    public StringMatcher add(StringMatcher child) {
+    public synchronized StringMatcher add(StringMatcher child) {
         children.add(child);
+        compiled = null;
         return child;
     }
-    public void remove(StringMatcher child) {
+    public synchronized void remove(StringMatcher child) {
         children.remove(child);
+        compiled = null;
     }
 
     public StringMatcher add(Pattern pattern, String replacement) {
@@ -33,11 +146,41 @@ public class ListStringMatcher implements StringMatcher {
     }
 
     public String match(String input) {
-        for (StringMatcher m : children) {
-            String res = m.match(input);
+        Stage[] stages = compiled;
+        if (stages == null) stages = compile();
+        for (Stage s : stages) {
+            String res = s.match(input);
             if (res != null) return res;
         }
         return null;
     }
 
+    private synchronized Stage[] compile() {
+        if (compiled != null) return compiled;
+        List<Stage> stages = new ArrayList<Stage>();
+        MergedStage cur = new MergedStage();
+        for (StringMatcher m : children) {
+            if (isMergeable(m)) {
+                cur.add((DefaultStringMatcher) m);
+                continue;
+            }
+            if (! cur.isEmpty()) {
+                stages.add(cur.finish());
+                cur = new MergedStage();
+            }
+            stages.add(new OpaqueStage(m));
+        }
+        if (! cur.isEmpty()) stages.add(cur.finish());
+        compiled = stages.toArray(new Stage[stages.size()]);
+        return compiled;
+    }
+
+    private static boolean isMergeable(StringMatcher m) {
+        if (! (m instanceof DefaultStringMatcher)) return false;
+        DefaultStringMatcher dm = (DefaultStringMatcher) m;
+        if (dm.getLiteral() != null && ! dm.isDynamic()) return true;
+        return (dm.getPattern().flags() == 0 &&
+                ! UNMERGEABLE.matcher(dm.getPattern().pattern()).find());
+    }
+
 }
@@ -0,0 +1,99 @@
+package net.instant.util.stringmatch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A trie mapping string prefixes to values.
+ * lookup() finds all values whose prefixes are prefixes of a given string
+ * in time proportional to the length of the latter (and the amount of
+ * values found), and returns them in insertion order.
+ * Instances are not thread-safe; they are meant to be built once and then
+ * shared without further modification.
+ */
+public class PrefixIndex<T> {
+
+    private static class Entry<T> {
+
+        public final int index;
+        public final T value;
+
+        public Entry(int index, T value) {
+            this.index = index;
+            this.value = value;
+        }
+
+    }
+
+    private static class Node<T> {
+
+        public final Map<Character, Node<T>> children;
+        public final List<Entry<T>> entries;
+
+        public Node() {
+            children = new HashMap<Character, Node<T>>();
+            entries = new ArrayList<Entry<T>>();
+        }
+
+    }
+
+    private static final Comparator<Entry<?>> ORDER =
+        new Comparator<Entry<?>>() {
+            public int compare(Entry<?> a, Entry<?> b) {
+                return Integer.compare(a.index, b.index);
+            }
+        };
+
+    private final Node<T> root;
+    private int size;
+
+    public PrefixIndex() {
+        root = new Node<T>();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void add(String prefix, T value) {
+        Node<T> n = root;
+        for (int i = 0; i < prefix.length(); i++) {
+            Character ch = prefix.charAt(i);
+            Node<T> next = n.children.get(ch);
+            if (next == null) {
+                next = new Node<T>();
+                n.children.put(ch, next);
+            }
+            n = next;
+        }
+        n.entries.add(new Entry<T>(size++, value));
+    }
+
+    /**
+     * Return all values whose prefixes are prefixes of input, in the order
+     * they were added.
+     */
+    public List<T> lookup(String input) {
+        List<Entry<T>> found = new ArrayList<Entry<T>>();
+        int nodes = 0;
+        Node<T> n = root;
+        for (int i = 0; ; i++) {
+            if (! n.entries.isEmpty()) {
+                found.addAll(n.entries);
+                nodes++;
+            }
+            if (i == input.length()) break;
+            n = n.children.get(input.charAt(i));
+            if (n == null) break;
+        }
+        if (nodes > 1) Collections.sort(found, ORDER);
+        List<T> ret = new ArrayList<T>(found.size());
+        for (Entry<T> e : found) ret.add(e.value);
+        return ret;
+    }
+
+}
@@ -1,64 +1,253 @@
 package net.instant.ws;
 
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Logger;
 import net.instant.api.API1;
 import net.instant.api.ClientConnection;
+import net.instant.util.Util;
+import org.java_websocket.WebSocket;
 
+/**
+ * Closes connections whose deadlines have passed.
+ * The deadlines are kept in a hashed timing wheel: a ring of slots, each of
+ * which covers a "tick" of getPrecision() milliseconds and holds the
+ * connections expiring during it (or during a tick a whole revolution of the
+ * wheel later). Each run only examines the slots of the ticks that have
+ * passed since the previous one. Postponing a deadline (which is what
+ * clients regularly do) only updates the connection's entry; it is moved to
+ * the right slot when the wheel reaches the one it is in.
+ */
 public class ConnectionGC implements Runnable {
 
     private static final Logger LOGGER = Logger.getLogger("ConnGC");
 
-    public static final long INTERVAL = 10000;
-    public static final long GRACE_TIME = 5000;
+    private static final String K_PRECISION =
+        "instant.connections.gcPrecision";
+
+    public static final long DEFAULT_PRECISION = 1000;
+    public static final int WHEEL_SIZE = 512;
+
+    /* A connection's position in the wheel. The fields are guarded by the
+     * entry's monitor, which is (if at all) acquired before that of a
+     * slot. Kept-alive connections reuse their entry for every exchange;
+     * the connection is that of the exchange that set the deadline. */
+    static class Entry {
+
+        private volatile ClientConnection connection;
+        private volatile Long deadline;
+        private Slot slot;
+
+        public Entry(ClientConnection connection) {
+            this.connection = connection;
+        }
+
+        public ClientConnection getConnection() {
+            return connection;
+        }
+
+        public Long getDeadline() {
+            return deadline;
+        }
+
+    }
+
+    private static class Slot {
+
+        private final Set<Entry> entries;
+
+        public Slot() {
+            entries = new HashSet<Entry>();
+        }
+
+        public synchronized void add(Entry e) {
+            entries.add(e);
+        }
+
+        public synchronized void remove(Entry e) {
+            entries.remove(e);
+        }
+
+        public synchronized List<Entry> drain() {
+            List<Entry> ret = new ArrayList<Entry>(entries);
+            entries.clear();
+            return ret;
+        }
+
+        public synchronized List<Entry> snapshot() {
+            return new ArrayList<Entry>(entries);
+        }
+
+    }
 
     private final API1 parent;
-    private final Map<ClientConnection, Long> deadlines;
+    private final long precision;
+    private final Slot[] wheel;
+    /* Entries of connections that are not InstantWebSocketImpl-s (those
+     * hold their entries themselves). */
+    private final ConcurrentMap<ClientConnection, Entry> others;
+    /* The last tick whose slot has been processed. Advanced while holding
+     * the monitor of the slot about to be drained. */
+    private volatile long processed;
 
-    public ConnectionGC(API1 parent) {
+    public ConnectionGC(API1 parent, long precision) {
+        if (precision <= 0)
+            throw new IllegalArgumentException("Invalid precision " +
+                precision);
         this.parent = parent;
-        this.deadlines = Collections.synchronizedMap(
-            new HashMap<ClientConnection, Long>());
+        this.precision = precision;
+        this.wheel = new Slot[WHEEL_SIZE];
+        this.others = new ConcurrentHashMap<ClientConnection, Entry>();
+        this.processed = System.currentTimeMillis() / precision;
+        for (int i = 0; i < wheel.length; i++) wheel[i] = new Slot();
+    }
+    public ConnectionGC(API1 parent) {
+        this(parent, Util.parseLong(parent.getConfiguration(K_PRECISION),
+                                    DEFAULT_PRECISION));
+    }
+
+    /**
+     * The granularity (in milliseconds) with which deadlines are enforced.
+     */
+    public long getPrecision() {
+        return precision;
     }
 
     public Map<ClientConnection, Long> getDeadlines() {
-        synchronized (deadlines) {
-            return new HashMap<ClientConnection, Long>(deadlines);
+        Map<ClientConnection, Long> ret =
+            new HashMap<ClientConnection, Long>();
+        for (Slot s : wheel) {
+            for (Entry e : s.snapshot()) {
+                Long d = e.getDeadline();
+                if (d != null) ret.put(e.getConnection(), d);
+            }
         }
+        return ret;
     }
 
     public Long getDeadline(ClientConnection connection) {
-        return deadlines.get(connection);
+        Entry e = getEntry(connection, false);
+        return (e == null) ? null : e.getDeadline();
     }
 
     public void setDeadline(ClientConnection connection, long deadline) {
-        deadlines.put(connection, deadline);
+        Entry e = getEntry(connection, true);
+        synchronized (e) {
+            Long old = e.deadline;
+            e.connection = connection;
+            e.deadline = deadline;
+            // The entry will be moved when the wheel reaches its current
+            // slot.
+            if (e.slot != null && deadline >= old) return;
+            if (e.slot != null) e.slot.remove(e);
+            insert(e);
+        }
     }
 
     public void removeDeadline(ClientConnection connection) {
-        deadlines.remove(connection);
+        Entry e = getEntry(connection, false);
+        if (e == null) return;
+        synchronized (e) {
+            e.deadline = null;
+            if (e.slot != null) {
+                e.slot.remove(e);
+                e.slot = null;
+            }
+        }
+        if (! (connection.getConnection() instanceof InstantWebSocketImpl))
+            others.remove(connection, e);
     }
 
     public void cleanup(ClientConnection r) {
         LOGGER.info("Cleaning up connection " + r);
-        r.getConnection().close();
+        WebSocket ws = r.getConnection();
+        if (ws instanceof InstantWebSocketImpl) {
+            ((InstantWebSocketImpl) ws).expire(r);
+        } else {
+            ws.close();
+        }
     }
 
     public void run() {
-        LOGGER.fine("Garbage-collecting connections...");
         long now = System.currentTimeMillis();
-        for (Map.Entry<ClientConnection, Long> e :
-             getDeadlines().entrySet()) {
-            if (e.getValue() != null && e.getValue() < now) {
-                cleanup(e.getKey());
+        long target = now / precision;
+        long tick = processed;
+        // If more than a whole revolution has passed, every slot has to be
+        // processed once.
+        if (target - tick > wheel.length) tick = target - wheel.length;
+        List<ClientConnection> expired = new ArrayList<ClientConnection>();
+        while (tick < target) {
+            tick++;
+            Slot slot = wheel[slotIndex(tick)];
+            List<Entry> entries;
+            synchronized (slot) {
+                // Entries inserted from now on go into later slots.
+                processed = tick;
+                entries = slot.drain();
+            }
+            for (Entry e : entries) {
+                synchronized (e) {
+                    // The entry might have been rescheduled concurrently.
+                    if (e.slot != slot) continue;
+                    e.slot = null;
+                    if (e.deadline == null) continue;
+                    if (e.deadline < now) {
+                        expired.add(e.getConnection());
+                    } else {
+                        insert(e);
+                    }
+                }
             }
         }
+        for (ClientConnection c : expired) cleanup(c);
     }
 
     public void start() {
-        parent.scheduleJob(this, INTERVAL, INTERVAL);
+        parent.scheduleJob(this, precision, precision);
+    }
+
+    /* The caller must hold e's monitor. */
+    private void insert(Entry e) {
+        // An entry is due once its tick's slot is processed after the tick
+        // has ended.
+        long due = e.deadline / precision + 1;
+        for (;;) {
+            long tick = Math.max(due, processed + 1);
+            Slot s = wheel[slotIndex(tick)];
+            synchronized (s) {
+                // If run() has drained the slot in the meantime, try
+                // again with the updated processed value.
+                if (tick <= processed) continue;
+                s.add(e);
+            }
+            e.slot = s;
+            return;
+        }
+    }
+
+    private int slotIndex(long tick) {
+        return (int) (tick % wheel.length);
+    }
+
+    private Entry getEntry(ClientConnection conn, boolean create) {
+        WebSocket ws = conn.getConnection();
+        if (ws instanceof InstantWebSocketImpl) {
+            InstantWebSocketImpl impl = (InstantWebSocketImpl) ws;
+            Entry ret = impl.getGCEntry();
+            if (ret != null || ! create) return ret;
+            return impl.initGCEntry(new Entry(conn));
+        }
+        Entry ret = others.get(conn);
+        if (ret != null || ! create) return ret;
+        Entry fresh = new Entry(conn);
+        ret = others.putIfAbsent(conn, fresh);
+        return (ret == null) ? fresh : ret;
     }
 
 }
@@ -52,6 +52,9 @@ public class Draft_Raw extends Draft {
             default: return ByteBuffer.allocate(0);
         }
         ByteBuffer src = framedata.getPayloadData();
+        /* The content of read-only buffers cannot be changed by whoever
+         * sent them, so they need not be copied. */
+        if (src.isReadOnly()) return src.slice();
         ByteBuffer nbuf = ByteBuffer.allocate(src.limit());
         nbuf.put(src);
         nbuf.flip();
@@ -89,6 +92,9 @@ public class Draft_Raw extends Draft {
     @Override
     public void processFrame(WebSocketImpl webSocketImpl, Framedata frame) throws InvalidDataException {
         /* FIXME: This should probably handle realistic frame sequences which wouldn't be generated by this class. */
+        /* Input following a request whose connection is kept alive belongs to the next request. */
+        if (webSocketImpl instanceof InstantWebSocketImpl && ((InstantWebSocketImpl) webSocketImpl).deferInput(frame.getPayloadData()))
+            return;
         switch (frame.getOpcode()) {
             case TEXT:
                 try {
@@ -0,0 +1,82 @@
+package net.instant.ws;
+
+import java.util.ArrayList;
+import java.util.List;
+import net.instant.api.ClaimingRequestHook;
+import net.instant.api.RequestClaims;
+import net.instant.api.RequestData;
+import net.instant.api.RequestHook;
+import net.instant.util.stringmatch.PrefixIndex;
+
+/**
+ * An index of RequestHook-s by the requests they claim.
+ * Hooks that are not ClaimingRequestHook-s are treated as claiming every
+ * request. getCandidates() returns the hooks that might accept a request in
+ * their original order.
+ * Instances are immutable snapshots of the hook set with the given version
+ * (as maintained by the creator); isCurrent() tells whether the hook set or
+ * any hook's claims have changed since.
+ */
+public class HookIndex {
+
+    private final List<RequestHook> hooks;
+    private final int version;
+    private final RequestClaims[] claims;
+    private final PrefixIndex<Integer> paths;
+
+    public HookIndex(Iterable<RequestHook> hooks, int version) {
+        this.version = version;
+        this.hooks = new ArrayList<RequestHook>();
+        for (RequestHook h : hooks) this.hooks.add(h);
+        this.claims = new RequestClaims[this.hooks.size()];
+        this.paths = new PrefixIndex<Integer>();
+        for (int i = 0; i < claims.length; i++) {
+            claims[i] = getClaims(this.hooks.get(i));
+            if (claims[i].getPathPrefixes() == null) {
+                paths.add("", i);
+            } else {
+                for (String p : claims[i].getPathPrefixes()) paths.add(p, i);
+            }
+        }
+    }
+
+    public List<RequestHook> getHooks() {
+        return hooks;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Test whether the hook set still has the given version and all hooks
+     * still report the claims this index was built from.
+     */
+    public boolean isCurrent(int version) {
+        if (version != this.version) return false;
+        for (int i = 0; i < claims.length; i++) {
+            if (getClaims(hooks.get(i)) != claims[i]) return false;
+        }
+        return true;
+    }
+
+    public List<RequestHook> getCandidates(RequestData req) {
+        List<RequestHook> ret = new ArrayList<RequestHook>();
+        int prev = -1;
+        for (int i : paths.lookup(req.getPath())) {
+            // A hook may claim several prefixes of the path.
+            if (i == prev) continue;
+            prev = i;
+            if (claims[i].coversKind(req.getRequestType(), req.getMethod()))
+                ret.add(hooks.get(i));
+        }
+        return ret;
+    }
+
+    private static RequestClaims getClaims(RequestHook h) {
+        if (! (h instanceof ClaimingRequestHook)) return RequestClaims.ANY;
+        RequestClaims ret = ((ClaimingRequestHook) h).getClaims();
+        return (ret == null) ? RequestClaims.ANY : ret;
+    }
+
+}
@@ -35,7 +35,9 @@ public class InformationCollector {
                                              ClientHandshake request) {
         Datum d = requests.get(request);
         d.initRequest(conn, draft, request);
-        connections.put(conn, d);
+        // InstantWebSocketImpl-s hold their Datum themselves.
+        if (! (conn instanceof InstantWebSocketImpl))
+            connections.put(conn, d);
         return d;
     }
     public synchronized Datum addResponse(ClientHandshake request,
@@ -49,8 +51,12 @@ public class InformationCollector {
         d.postProcess();
     }
 
-    public synchronized Datum get(WebSocket ws) {
-        return connections.get(ws);
+    public Datum get(WebSocket ws) {
+        if (ws instanceof InstantWebSocketImpl)
+            return ((InstantWebSocketImpl) ws).getDescription();
+        synchronized (this) {
+            return connections.get(ws);
+        }
     }
 
 }
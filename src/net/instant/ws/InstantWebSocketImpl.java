@@ -1,14 +1,31 @@
 package net.instant.ws;
 
+import java.lang.reflect.Field;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.instant.api.ClientConnection;
+import net.instant.api.RequestHook;
+import net.instant.api.RequestType;
+import net.instant.api.Room;
+import net.instant.util.fileprod.FileCell;
 import org.java_websocket.WebSocketAdapter;
 import org.java_websocket.WebSocketImpl;
+import org.java_websocket.WebSocketListener;
 import org.java_websocket.drafts.Draft;
+import org.java_websocket.enums.ReadyState;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+import org.java_websocket.framing.CloseFrame;
 
 // We retrieve the addresses of the underlying socket in setSelectionKey()
 // and expose them via a dedicated API. The retrieval happens inside
@@ -20,18 +37,100 @@ import org.java_websocket.drafts.Draft;
 // information and be used as the channel). We use a dedicated API because the
 // "original" API is documented to return null when the socket is closed,
 // which is just what we do not want.
+// Additionally, the per-connection state the server and the message
+// distributor need while processing messages is stored here, so that
+// retrieving it does not involve any shared (and synchronized) maps.
+// Finally, plain HTTP connections can be kept alive: When a response that
+// permits this is closed, the connection is instead reset into the state
+// it had before receiving its first request (which the underlying library
+// offers no API for, hence the reflection), and input that arrives while
+// the response is being produced is held back until then. Input is decoded
+// (and connections are reset) under a lock of its own, which keeps the two
+// apart; the lock guarding the keep-alive state is only held briefly and
+// never while hooks run.
 public class InstantWebSocketImpl extends WebSocketImpl {
 
+    private static final Logger LOGGER = Logger.getLogger("IWSImpl");
+
+    /* The maximum amount of bytes held back while a response is pending. */
+    public static final int MAX_DEFERRED = 65536;
+
+    private static final Field F_READY_STATE;
+    private static final Field F_DRAFT;
+    private static final Field F_HANDSHAKE_REQUEST;
+    private static final Field F_TMP_HANDSHAKE_BYTES;
+    private static final Field F_RESOURCE_DESCRIPTOR;
+    private static final Field F_OUT_QUEUE;
+
+    static {
+        Field[] fields = new Field[5];
+        try {
+            fields[0] = getField("readyState");
+            fields[1] = getField("draft");
+            fields[2] = getField("handshakerequest");
+            fields[3] = getField("tmpHandshakeBytes");
+            fields[4] = getField("resourceDescriptor");
+        } catch (Exception exc) {
+            LOGGER.log(Level.WARNING, "Cannot reset connections; HTTP " +
+                "keep-alive will be unavailable", exc);
+            fields = new Field[5];
+        }
+        F_READY_STATE = fields[0];
+        F_DRAFT = fields[1];
+        F_HANDSHAKE_REQUEST = fields[2];
+        F_TMP_HANDSHAKE_BYTES = fields[3];
+        F_RESOURCE_DESCRIPTOR = fields[4];
+        Field outQueue;
+        try {
+            outQueue = getField("outQueue");
+        } catch (Exception exc) {
+            LOGGER.log(Level.WARNING, "Cannot install output queues; " +
+                "pending bytes will be counted the slow way", exc);
+            outQueue = null;
+        }
+        F_OUT_QUEUE = outQueue;
+    }
+
+    private final Object decodeLock;
+    private final Object keepAliveLock;
     private volatile Datum description;
+    private volatile RequestHook assignedHook;
+    private volatile Room room;
+    private final AtomicReference<ConnectionGC.Entry> gcEntry;
     private volatile InetSocketAddress cachedLocalAddress;
     private volatile InetSocketAddress cachedRemoteAddress;
+    private volatile int exchanges;
+    private volatile boolean reusable;
+    // The following are guarded by keepAliveLock.
+    private boolean keepAlive;
+    private boolean idle;
+    private boolean decoding;
+    private boolean recyclePending;
+    private boolean recycling;
+    private boolean overflowed;
+    private ByteBuffer deferred;
 
     public InstantWebSocketImpl(WebSocketAdapter adapter, Draft draft) {
         super(adapter, draft);
+        decodeLock = new Object();
+        keepAliveLock = new Object();
+        gcEntry = new AtomicReference<ConnectionGC.Entry>();
+        installOutputQueue();
     }
     public InstantWebSocketImpl(WebSocketAdapter adapter,
                                 List<Draft> drafts) {
         super(adapter, drafts);
+        decodeLock = new Object();
+        keepAliveLock = new Object();
+        gcEntry = new AtomicReference<ConnectionGC.Entry>();
+        installOutputQueue();
+    }
+
+    /**
+     * Whether connections can be kept alive at all.
+     */
+    public static boolean isRecyclingSupported() {
+        return (F_RESOURCE_DESCRIPTOR != null);
     }
 
     public Datum getDescription() {
@@ -41,6 +140,30 @@ public class InstantWebSocketImpl extends WebSocketImpl {
         description = desc;
     }
 
+    public RequestHook getAssignedHook() {
+        return assignedHook;
+    }
+    public void setAssignedHook(RequestHook hook) {
+        assignedHook = hook;
+    }
+
+    public Room getRoom() {
+        return room;
+    }
+    public void setRoom(Room r) {
+        room = r;
+    }
+
+    ConnectionGC.Entry getGCEntry() {
+        return gcEntry.get();
+    }
+    // Returns the entry actually installed (which might have been installed
+    // concurrently).
+    ConnectionGC.Entry initGCEntry(ConnectionGC.Entry e) {
+        if (gcEntry.compareAndSet(null, e)) return e;
+        return gcEntry.get();
+    }
+
     public InetSocketAddress getCachedLocalAddress() {
         if (cachedLocalAddress == null)
             cachedLocalAddress = getLocalSocketAddress();
@@ -53,6 +176,245 @@ public class InstantWebSocketImpl extends WebSocketImpl {
         return cachedRemoteAddress;
     }
 
+    public int getPendingMessages() {
+        return outQueue.size();
+    }
+
+    // The buffers are concurrently consumed by the selector thread, so this
+    // is only an estimate. Buffers count (fully) until they are written
+    // completely.
+    public long getPendingBytes() {
+        if (outQueue instanceof OutputQueue)
+            return ((OutputQueue) outQueue).getPendingBytes();
+        long ret = 0;
+        for (ByteBuffer buf : outQueue) ret += buf.remaining();
+        return ret;
+    }
+
+    // Enqueue a frame that has already been encoded for this connection's
+    // draft (see SharedTextFrame). The buffer is not modified; every
+    // connection gets its own view of it so that the shared position is
+    // not disturbed by partial writes. As the frame is enqueued as a single
+    // buffer, it cannot be interleaved with concurrently sent frames.
+    public void sendEncoded(ByteBuffer frame) {
+        if (! isOpen()) throw new WebsocketNotConnectedException();
+        outQueue.add(frame.duplicate());
+        getWebSocketListener().onWriteDemand(this);
+    }
+
+    /**
+     * Send the content of cell as (a part of) a raw HTTP response.
+     * If cell is backed by a file (see FileCell.openChannel()), the content
+     * is transferred directly from the file on plain connections, and
+     * read from the file into a private buffer otherwise (as the buffer
+     * of cell might be a mapping of the file, which must not be touched
+     * on the selector thread); if the file cannot be read completely, the
+     * connection is aborted. Cells not backed by a file have their buffer
+     * enqueued as-is. Connections of other types fall back to send().
+     */
+    public void sendFile(FileCell cell) {
+        ByteBuffer data = cell.getData();
+        boolean http = (DraftWrapper.getRequestType(getDraft()) ==
+                        RequestType.HTTP);
+        if (http && ! isOpen()) throw new WebsocketNotConnectedException();
+        FileChannel source;
+        try {
+            source = cell.openChannel();
+            ByteChannel ch = getChannel();
+            if (source != null && http && ch instanceof TransferChannel) {
+                ((TransferChannel) ch).addRegion(data, source);
+            } else if (source != null) {
+                data = readFully(source, data.remaining());
+            }
+        } catch (IOException exc) {
+            LOGGER.log(Level.WARNING, "Could not read file " +
+                cell.getName() + "; aborting connection", exc);
+            closeConnection(CloseFrame.ABNORMAL_CLOSE, "Could not read file");
+            return;
+        }
+        if (! http) {
+            send(data);
+            return;
+        }
+        outQueue.add(data);
+        getWebSocketListener().onWriteDemand(this);
+    }
+
+    /**
+     * The amount of requests received on this connection so far.
+     */
+    public int getExchanges() {
+        return exchanges;
+    }
+
+    // Called by the server when a request has been received.
+    void beginExchange() {
+        synchronized (keepAliveLock) {
+            exchanges++;
+            idle = false;
+            keepAlive = false;
+        }
+    }
+
+    // Called by the server when the response to the current request
+    // permits the connection to be reused.
+    void setKeepAlive(boolean k) {
+        synchronized (keepAliveLock) {
+            keepAlive = k;
+            if (k) reusable = true;
+        }
+    }
+
+    // Called by Draft_Raw with input received after a request. Returns
+    // whether the input has been held back for the next request.
+    boolean deferInput(ByteBuffer data) {
+        synchronized (keepAliveLock) {
+            // The response might have been finished already while its
+            // request is still being decoded (or the connection is being
+            // reset).
+            if (! keepAlive && ! recyclePending && ! recycling)
+                return false;
+            if (overflowed) return true;
+            int size = data.remaining();
+            if (deferred == null) {
+                deferred = ByteBuffer.allocate(Math.max(size, 1024));
+            } else if (deferred.remaining() < size) {
+                if (deferred.position() + size > MAX_DEFERRED) {
+                    // Too much is pipelined; close the connection after the
+                    // current response instead.
+                    deferred = null;
+                    keepAlive = false;
+                    if (recyclePending || recycling) overflowed = true;
+                    return true;
+                }
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(
+                    deferred.position() + size, deferred.capacity() * 2));
+                deferred.flip();
+                grown.put(deferred);
+                deferred = grown;
+            }
+            deferred.put(data);
+            return true;
+        }
+    }
+
+    // Called by ConnectionGC when a deadline set via from has passed.
+    void expire(ClientConnection from) {
+        // The deadline might be a leftover from an exchange preceding the
+        // current one.
+        if (exchanges > 1 && from != description) return;
+        close();
+    }
+
+    @Override
+    public void decode(ByteBuffer buf) {
+        synchronized (decodeLock) {
+            synchronized (keepAliveLock) {
+                decoding = true;
+            }
+            boolean recycleNow;
+            try {
+                super.decode(buf);
+            } finally {
+                synchronized (keepAliveLock) {
+                    decoding = false;
+                    // A response finished while its request was being
+                    // decoded; the connection could not be reset in the
+                    // middle of that.
+                    recycleNow = recyclePending;
+                    recyclePending = false;
+                    if (recycleNow) recycling = true;
+                }
+            }
+            if (recycleNow) recycle();
+        }
+    }
+
+    @Override
+    public void close(int code, String message, boolean remote) {
+        if (reusable) {
+            boolean recycleNow = false, closeNow = false;
+            synchronized (keepAliveLock) {
+                if (keepAlive && ! remote && code == CloseFrame.NORMAL &&
+                        isOpen()) {
+                    keepAlive = false;
+                    if (decoding) {
+                        recyclePending = true;
+                        return;
+                    } else {
+                        recycling = true;
+                        recycleNow = true;
+                    }
+                } else if (idle) {
+                    // Nothing is pending, so the connection can be closed
+                    // immediately.
+                    idle = false;
+                    closeNow = true;
+                } else if ((recycling || recyclePending) && ! remote &&
+                           code == CloseFrame.NORMAL) {
+                    // The response has been finished already, and the
+                    // connection is being reset.
+                    return;
+                }
+            }
+            if (recycleNow) {
+                recycle();
+                return;
+            } else if (closeNow) {
+                closeConnection(code, message, remote);
+                return;
+            }
+        }
+        super.close(code, message, remote);
+    }
+
+    /* The caller must have set recycling (and must not hold
+     * keepAliveLock). Input arriving in the meantime is held back by
+     * deferInput() and decoded afterwards. */
+    private void recycle() {
+        synchronized (decodeLock) {
+            boolean abort;
+            synchronized (keepAliveLock) {
+                abort = overflowed;
+                if (abort) {
+                    overflowed = false;
+                    recycling = false;
+                    deferred = null;
+                }
+            }
+            if (abort) {
+                super.close(CloseFrame.NORMAL, "", false);
+                return;
+            }
+            WebSocketListener l = getWebSocketListener();
+            if (l instanceof InstantWebSocketServer)
+                ((InstantWebSocketServer) l).recycle(this);
+            try {
+                F_READY_STATE.set(this, ReadyState.NOT_YET_CONNECTED);
+                F_DRAFT.set(this, null);
+                F_HANDSHAKE_REQUEST.set(this, null);
+                F_TMP_HANDSHAKE_BYTES.set(this, ByteBuffer.allocate(0));
+                F_RESOURCE_DESCRIPTOR.set(this, null);
+            } catch (IllegalAccessException exc) {
+                // Should not happen.
+                throw new RuntimeException(exc);
+            }
+            ByteBuffer in;
+            synchronized (keepAliveLock) {
+                recycling = false;
+                idle = true;
+                in = deferred;
+                deferred = null;
+            }
+            // Holding decodeLock ensures that this is decoded before any
+            // input arriving later.
+            if (in != null) {
+                in.flip();
+                decode(in);
+            }
+        }
+    }
+
     @Override
     public void setSelectionKey(SelectionKey key) {
         super.setSelectionKey(key);
@@ -66,4 +428,39 @@ public class InstantWebSocketImpl extends WebSocketImpl {
         }
     }
 
+    // Replace the queue the library created (which is still empty) with
+    // one that counts the bytes pending in it.
+    private void installOutputQueue() {
+        if (F_OUT_QUEUE == null) return;
+        try {
+            F_OUT_QUEUE.set(this, new OutputQueue());
+        } catch (IllegalAccessException exc) {
+            // Should not happen.
+            throw new RuntimeException(exc);
+        }
+    }
+
+    // Read the first size bytes of source into a new buffer and close
+    // source.
+    private static ByteBuffer readFully(FileChannel source, int size)
+            throws IOException {
+        try {
+            ByteBuffer ret = ByteBuffer.allocate(size);
+            while (ret.hasRemaining()) {
+                if (source.read(ret, ret.position()) < 0)
+                    throw new IOException("File truncated while being read");
+            }
+            ret.flip();
+            return ret;
+        } finally {
+            source.close();
+        }
+    }
+
+    private static Field getField(String name) throws Exception {
+        Field ret = WebSocketImpl.class.getDeclaredField(name);
+        ret.setAccessible(true);
+        return ret;
+    }
+
 }
@@ -1,7 +1,6 @@
 package net.instant.ws;
 
 import java.io.File;
-import java.io.PrintStream;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
@@ -13,12 +12,17 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import net.instant.api.API1;
 import net.instant.api.RequestData;
 import net.instant.api.RequestHook;
+import net.instant.api.RequestResponseData;
+import net.instant.api.RequestType;
 import net.instant.api.ResponseBuilder;
+import net.instant.util.AccessLog;
 import net.instant.util.Formats;
 import net.instant.util.StringSigner;
 import net.instant.util.Util;
@@ -44,6 +48,13 @@ public class InstantWebSocketServer extends WebSocketServer
     private static final String K_KEYFILE = "instant.cookies.keyfile";
     private static final String K_CREATE = "instant.cookies.keyfile.create";
     private static final String K_NO_REUSEADDR = "instant.server.noReuseAddr";
+    private static final String K_KEEPALIVE_TIMEOUT =
+        "instant.http.keepAlive.timeout";
+    private static final String K_KEEPALIVE_MAX =
+        "instant.http.keepAlive.maxRequests";
+
+    public static final long DEFAULT_KEEPALIVE_TIMEOUT = 5000;
+    public static final int DEFAULT_KEEPALIVE_MAX = 100;
 
     public static final List<Draft> DEFAULT_DRAFTS;
 
@@ -60,12 +71,23 @@ public class InstantWebSocketServer extends WebSocketServer
     private final String serverLabel;
     private final Set<RequestHook> hooks;
     private final Set<RequestHook> internalHooks;
+    /* Only used for connections that are not InstantWebSocketImpl-s; those
+     * hold their assignment (and Datum) themselves. */
     private final Map<WebSocket, RequestHook> assignments;
+    /* Kept-alive connections waiting for another request; these are not
+     * in the superclass' connection set (see recycle()). */
+    private final Set<InstantWebSocketImpl> idleConnections;
+    /* Incremented whenever the hook sets change; a HookIndex built from an
+     * older version is stale. */
+    private final AtomicInteger hookVersion;
+    private volatile HookIndex index;
     private InformationCollector collector;
     private CookieHandler cookies;
     private IdentityCookieManager identifier;
     private ConnectionGC gc;
-    private PrintStream httpLog;
+    private AccessLog httpLog;
+    private volatile long keepAliveTimeout;
+    private volatile int keepAliveMaxRequests;
 
     public InstantWebSocketServer(API1 api, InetSocketAddress addr,
                                   Map<String, String> sslConfig) {
@@ -75,11 +97,19 @@ public class InstantWebSocketServer extends WebSocketServer
         internalHooks = new LinkedHashSet<RequestHook>();
         assignments = Collections.synchronizedMap(
             new WeakHashMap<WebSocket, RequestHook>());
+        idleConnections = Collections.newSetFromMap(
+            new ConcurrentHashMap<InstantWebSocketImpl, Boolean>());
+        hookVersion = new AtomicInteger();
         collector = new InformationCollector(this);
         cookies = new CookieHandler(makeStringSigner(api));
         identifier = new IdentityCookieManager(api);
         gc = new ConnectionGC(api);
-        httpLog = System.err;
+        httpLog = new AccessLog(System.err);
+        keepAliveTimeout = Util.parseLong(
+            api.getConfiguration(K_KEEPALIVE_TIMEOUT),
+            DEFAULT_KEEPALIVE_TIMEOUT);
+        keepAliveMaxRequests = (int) Util.parseLong(
+            api.getConfiguration(K_KEEPALIVE_MAX), DEFAULT_KEEPALIVE_MAX);
         setWebSocketFactory(makeWSSFactory(api, sslConfig));
         setReuseAddr(! Util.isTrue(api.getConfiguration(K_NO_REUSEADDR)));
         for (Draft d : getDraft()) {
@@ -142,11 +172,33 @@ public class InstantWebSocketServer extends WebSocketServer
         gc = g;
     }
 
-    public PrintStream getHTTPLog() {
+    public AccessLog getHTTPLog() {
         return httpLog;
     }
-    public void setHTTPLog(PrintStream s) {
-        httpLog = s;
+    public void setHTTPLog(AccessLog l) {
+        httpLog = l;
+    }
+
+    /**
+     * How long (in milliseconds) an HTTP connection may stay idle between
+     * requests. Non-positive values disable keep-alive.
+     */
+    public long getKeepAliveTimeout() {
+        return keepAliveTimeout;
+    }
+    public void setKeepAliveTimeout(long t) {
+        keepAliveTimeout = t;
+    }
+
+    /**
+     * How many requests may be served over a single HTTP connection.
+     * Negative values disable the limit.
+     */
+    public int getKeepAliveMaxRequests() {
+        return keepAliveMaxRequests;
+    }
+    public void setKeepAliveMaxRequests(int m) {
+        keepAliveMaxRequests = m;
     }
 
     /* Calling order:
@@ -164,7 +216,13 @@ public class InstantWebSocketServer extends WebSocketServer
     public ServerHandshakeBuilder onWebsocketHandshakeReceivedAsServer(
             WebSocket conn, Draft draft, ClientHandshake request)
             throws InvalidDataException {
-        collector.addRequestData(conn, draft, request);
+        Datum d = collector.addRequestData(conn, draft, request);
+        if (conn instanceof InstantWebSocketImpl) {
+            InstantWebSocketImpl impl = (InstantWebSocketImpl) conn;
+            impl.beginExchange();
+            // The connection is not idle anymore.
+            if (impl.getExchanges() > 1) gc.removeDeadline(d);
+        }
         return super.onWebsocketHandshakeReceivedAsServer(
             conn, draft, request);
     }
@@ -175,12 +233,17 @@ public class InstantWebSocketServer extends WebSocketServer
             throws InvalidHandshakeException {
         Datum d = collector.addResponse(request, response, result);
         postProcessInner(d, d);
-        for (RequestHook h : getAllHooks()) {
+        for (RequestHook h : getCandidateHooks(d)) {
             try {
                 if (h.evaluateRequest(d, d)) {
-                    assignments.put(d.getConnection(), h);
+                    WebSocket conn = d.getConnection();
+                    if (conn instanceof InstantWebSocketImpl) {
+                        assign((InstantWebSocketImpl) conn, h, d);
+                    } else {
+                        assignments.put(conn, h);
+                    }
                     collector.postProcess(d);
-                    httpLog.println(Formats.formatHTTPLog(d));
+                    httpLog.log(d);
                     return;
                 }
             } catch (Exception exc) {
@@ -196,6 +259,97 @@ public class InstantWebSocketServer extends WebSocketServer
         resp.addHeader("Server", serverLabel);
     }
 
+    private void assign(InstantWebSocketImpl conn, RequestHook h, Datum d) {
+        conn.setAssignedHook(h);
+        if (mayKeepAlive(conn, d)) {
+            d.addHeader("Connection", "keep-alive");
+            // The header only allows whole seconds; rounding up would
+            // promise more than is granted, and zero would be nonsense.
+            if (keepAliveTimeout >= 1000)
+                d.addHeader("Keep-Alive", "timeout=" +
+                    keepAliveTimeout / 1000);
+            conn.setKeepAlive(true);
+        }
+    }
+
+    /* Determine whether the connection serving req may be used for further
+     * requests after the response is complete. This requires, in
+     * particular, that the request and the response have no bodies whose
+     * ends are only marked by the end of the connection. */
+    protected boolean mayKeepAlive(InstantWebSocketImpl conn,
+                                   RequestResponseData req) {
+        if (keepAliveTimeout <= 0 ||
+                ! InstantWebSocketImpl.isRecyclingSupported())
+            return false;
+        // Error responses are sent via a variant of the raw HTTP draft, but
+        // they might also be given to failed WebSocket upgrades.
+        RequestType type = req.getRequestType();
+        if (type != RequestType.HTTP && (type != RequestType.ERROR ||
+                                         req.getHeader("Upgrade") != null))
+            return false;
+        int max = keepAliveMaxRequests;
+        if (max >= 0 && conn.getExchanges() >= max) return false;
+        String reqLength = req.getHeader("Content-Length");
+        if (reqLength != null && ! reqLength.trim().equals("0") ||
+                req.getHeader("Transfer-Encoding") != null)
+            return false;
+        int code = req.getStatusCode();
+        if (code != 204 && code != 304 &&
+                req.getResponseHeader("Content-Length") == null)
+            return false;
+        List<String> tokens = Formats.parseCommaList(
+            req.getHeader("Connection"));
+        boolean keepAlive = false;
+        if (tokens != null) {
+            for (String t : tokens) {
+                if (t.equalsIgnoreCase("close")) return false;
+                if (t.equalsIgnoreCase("keep-alive")) keepAlive = true;
+            }
+        }
+        return (keepAlive || "HTTP/1.1".equals(req.getHTTPVersion()));
+    }
+
+    /* Called by conn when its current exchange is finished and it is about
+     * to wait for another request. */
+    void recycle(InstantWebSocketImpl conn) {
+        RequestHook h = conn.getAssignedHook();
+        Datum d = conn.getDescription();
+        try {
+            if (h != null) h.onClose(d, true);
+        } finally {
+            conn.setAssignedHook(null);
+            // Allows the request to be reported by onOpen() again.
+            removeConnection(conn);
+            idleConnections.add(conn);
+            gc.setDeadline(d, System.currentTimeMillis() + keepAliveTimeout);
+        }
+    }
+
+    @Override
+    protected boolean addConnection(WebSocket conn) {
+        idleConnections.remove(conn);
+        return super.addConnection(conn);
+    }
+
+    @Override
+    protected boolean removeConnection(WebSocket conn) {
+        idleConnections.remove(conn);
+        return super.removeConnection(conn);
+    }
+
+    @Override
+    public void stop(int timeout) throws InterruptedException {
+        try {
+            super.stop(timeout);
+        } finally {
+            // The superclass only closes active connections; as those
+            // cannot become idle anymore, the idle ones can be taken care
+            // of now.
+            for (InstantWebSocketImpl conn : idleConnections)
+                conn.close(CloseFrame.GOING_AWAY);
+        }
+    }
+
     @Override
     public void onStart() {
         /* NOP */
@@ -204,30 +358,30 @@ public class InstantWebSocketServer extends WebSocketServer
 
     @Override
     public void onOpen(WebSocket conn, ClientHandshake handshake) {
-        RequestHook h = assignments.get(conn);
-        Datum d = collector.get(conn);
+        RequestHook h = getAssignment(conn);
+        Datum d = getDatum(conn);
         if (h != null) h.onOpen(d);
     }
 
     @Override
     public void onMessage(WebSocket conn, String message) {
-        RequestHook h = assignments.get(conn);
-        Datum d = collector.get(conn);
+        RequestHook h = getAssignment(conn);
+        Datum d = getDatum(conn);
         if (h != null) h.onInput(d, message);
     }
 
     @Override
     public void onMessage(WebSocket conn, ByteBuffer message) {
-        RequestHook h = assignments.get(conn);
-        Datum d = collector.get(conn);
+        RequestHook h = getAssignment(conn);
+        Datum d = getDatum(conn);
         if (h != null) h.onInput(d, message);
     }
 
     @Override
     public void onClose(WebSocket conn, int code, String reason,
                         boolean remote) {
-        RequestHook h = assignments.get(conn);
-        Datum d = collector.get(conn);
+        RequestHook h = getAssignment(conn);
+        Datum d = getDatum(conn);
         try {
             if (h != null)
                 h.onClose(d, (code == CloseFrame.NORMAL ||
@@ -244,13 +398,23 @@ public class InstantWebSocketServer extends WebSocketServer
             for (RequestHook h : getAllHooks()) h.onError(null, ex);
             return;
         }
-        RequestHook h = assignments.get(conn);
-        Datum d = collector.get(conn);
+        RequestHook h = getAssignment(conn);
+        Datum d = getDatum(conn);
         LOGGER.log(Level.SEVERE, "Exception while handling connection " + d,
                    ex);
         if (h != null) h.onError(d, ex);
     }
 
+    protected RequestHook getAssignment(WebSocket conn) {
+        if (conn instanceof InstantWebSocketImpl)
+            return ((InstantWebSocketImpl) conn).getAssignedHook();
+        return assignments.get(conn);
+    }
+
+    protected Datum getDatum(WebSocket conn) {
+        return collector.get(conn);
+    }
+
     public Iterable<RequestHook> getAllHooks() {
         return Util.concat(hooks, internalHooks);
     }
@@ -262,13 +426,33 @@ public class InstantWebSocketServer extends WebSocketServer
     }
     public void addHook(RequestHook hook) {
         hooks.add(hook);
+        hookVersion.incrementAndGet();
     }
     public void addInternalHook(RequestHook hook) {
         internalHooks.add(hook);
+        hookVersion.incrementAndGet();
     }
     public void removeHook(RequestHook hook) {
         hooks.remove(hook);
         internalHooks.remove(hook);
+        hookVersion.incrementAndGet();
+    }
+
+    /**
+     * Return the hooks that might accept req, in the order they are to be
+     * consulted.
+     */
+    public List<RequestHook> getCandidateHooks(RequestData req) {
+        HookIndex idx = index;
+        int version = hookVersion.get();
+        if (idx == null || ! idx.isCurrent(version)) {
+            // If the hooks change while the index is being built, the
+            // version stored in it is outdated, and the next call rebuilds
+            // it again.
+            idx = new HookIndex(getAllHooks(), version);
+            index = idx;
+        }
+        return idx.getCandidates(req);
     }
 
     public void launch() {
@@ -42,7 +42,7 @@ public class InstantWebSocketServerFactory implements WebSocketServerFactory {
     @Override
     public ByteChannel wrapChannel(SocketChannel channel,
                                    SelectionKey key) throws IOException {
-        if (sslef == null) return channel;
+        if (sslef == null) return new TransferChannel(channel);
         return new SSLSocketChannel2(channel, sslef.createSSLEngine(false),
                                      executor, key);
     }
@@ -0,0 +1,61 @@
+package net.instant.ws;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A connection's queue of outgoing buffers that keeps track of the amount
+ * of bytes pending in it.
+ * A buffer counts as pending (with the amount of bytes it had remaining
+ * when it was enqueued) until it is removed from the queue, i.e. until it
+ * has been written completely. Only the operations the underlying library
+ * (and InstantWebSocketImpl) use to manipulate the queue are accounted
+ * for, namely add(), offer(), put(), poll(), and clear().
+ */
+class OutputQueue extends LinkedBlockingQueue<ByteBuffer> {
+
+    /* The sizes of the buffers in the queue, in the same order. Guarded
+     * by the instance's monitor (as is the order of the queue's
+     * modifications). */
+    private final Queue<Integer> sizes;
+    private volatile long pendingBytes;
+
+    public OutputQueue() {
+        this.sizes = new ArrayDeque<Integer>();
+    }
+
+    /**
+     * The sum of the sizes of the buffers in the queue.
+     */
+    public long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    public synchronized boolean offer(ByteBuffer buf) {
+        int size = buf.remaining();
+        if (! super.offer(buf)) return false;
+        sizes.add(size);
+        pendingBytes += size;
+        return true;
+    }
+
+    public void put(ByteBuffer buf) {
+        // The queue is unbounded, so this never blocks.
+        offer(buf);
+    }
+
+    public synchronized ByteBuffer poll() {
+        ByteBuffer ret = super.poll();
+        if (ret != null) pendingBytes -= sizes.remove();
+        return ret;
+    }
+
+    public synchronized void clear() {
+        super.clear();
+        sizes.clear();
+        pendingBytes = 0;
+    }
+
+}
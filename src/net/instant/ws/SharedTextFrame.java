@@ -0,0 +1,63 @@
+package net.instant.ws;
+
+import java.nio.ByteBuffer;
+import org.java_websocket.WebSocket;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.extensions.DefaultExtension;
+import org.java_websocket.framing.TextFrame;
+import org.java_websocket.util.Charsetfunctions;
+
+/**
+ * A textual message that is sent to many connections at once.
+ * For plain RFC 6455 connections, the wire representation of the message is
+ * computed only once and shared (read-only) among all of them; other
+ * connections (such as those using Draft_SSE or Draft_Raw, or WebSockets
+ * with a negotiated extension) receive the message via their own send().
+ * Instances are meant to be used from a single thread.
+ */
+public class SharedTextFrame {
+
+    // Only used for encoding; Draft_6455 does not keep any per-frame state
+    // there as long as no masking or extensions are involved.
+    private static final Draft_6455 ENCODER = new Draft_6455();
+
+    private final String text;
+    private ByteBuffer encoded;
+
+    public SharedTextFrame(String text) {
+        this.text = text;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public ByteBuffer getEncoded() {
+        if (encoded == null) {
+            TextFrame frame = new TextFrame();
+            frame.setPayload(ByteBuffer.wrap(
+                Charsetfunctions.utf8Bytes(text)));
+            encoded = ENCODER.createBinaryFrame(frame).asReadOnlyBuffer();
+        }
+        return encoded;
+    }
+
+    public void sendTo(WebSocket conn) {
+        if (conn instanceof InstantWebSocketImpl &&
+                isPlainRFC6455(conn.getDraft())) {
+            ((InstantWebSocketImpl) conn).sendEncoded(getEncoded());
+        } else {
+            conn.send(text);
+        }
+    }
+
+    public static boolean isPlainRFC6455(Draft draft) {
+        while (draft instanceof DraftWrapper)
+            draft = ((DraftWrapper) draft).getWrapped();
+        return (draft != null && draft.getClass() == Draft_6455.class &&
+            ((Draft_6455) draft).getExtension().getClass() ==
+                DefaultExtension.class);
+    }
+
+}
@@ -0,0 +1,105 @@
+package net.instant.ws;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A plain socket channel that can send files without copying them through
+ * user space.
+ * Buffers registered via addRegion() are not written themselves when they
+ * are passed to write(); instead, the corresponding range of the file
+ * associated with them is transferred to the socket by the kernel (see
+ * FileChannel.transferTo()). The buffers' positions are advanced as if they
+ * had been written, so that they can be queued like any other outgoing
+ * data.
+ */
+public class TransferChannel implements ByteChannel {
+
+    private static final Logger LOGGER = Logger.getLogger("TransferChan");
+
+    private final SocketChannel socket;
+    private final Map<ByteBuffer, FileChannel> regions;
+
+    public TransferChannel(SocketChannel socket) {
+        this.socket = socket;
+        this.regions = new IdentityHashMap<ByteBuffer, FileChannel>();
+    }
+
+    public SocketChannel getSocket() {
+        return socket;
+    }
+
+    /**
+     * Arrange for the remaining content of buf to be sent from source.
+     * Position i of buf corresponds to position i of source. This instance
+     * takes ownership of source; if the socket is closed already, source
+     * is closed immediately and false is returned.
+     */
+    public boolean addRegion(ByteBuffer buf, FileChannel source) {
+        synchronized (this) {
+            if (socket.isOpen()) {
+                regions.put(buf, source);
+                return true;
+            }
+        }
+        closeQuietly(source);
+        return false;
+    }
+
+    public int read(ByteBuffer dst) throws IOException {
+        return socket.read(dst);
+    }
+
+    public int write(ByteBuffer src) throws IOException {
+        FileChannel source;
+        synchronized (this) {
+            source = regions.get(src);
+        }
+        if (source == null) return socket.write(src);
+        long n = source.transferTo(src.position(), src.remaining(), socket);
+        // Nothing being transferred might also mean that the socket's
+        // buffer is full.
+        if (n == 0 && source.size() < src.limit())
+            throw new IOException("File truncated while being sent");
+        src.position(src.position() + (int) n);
+        if (! src.hasRemaining()) {
+            synchronized (this) {
+                regions.remove(src);
+            }
+            closeQuietly(source);
+        }
+        return (int) n;
+    }
+
+    public boolean isOpen() {
+        return socket.isOpen();
+    }
+
+    public void close() throws IOException {
+        List<FileChannel> sources;
+        synchronized (this) {
+            socket.close();
+            sources = new ArrayList<FileChannel>(regions.values());
+            regions.clear();
+        }
+        for (FileChannel ch : sources) closeQuietly(ch);
+    }
+
+    private static void closeQuietly(FileChannel ch) {
+        try {
+            ch.close();
+        } catch (IOException exc) {
+            LOGGER.log(Level.WARNING, "Could not close file channel", exc);
+        }
+    }
+
+}